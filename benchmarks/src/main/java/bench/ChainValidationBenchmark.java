@@ -0,0 +1,101 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//cost of accepting one more block (Node.verifyBlock) and of building the next block's starting balances
+//(Node.computeChainState) as the chain grows, blocks go straight into the node's blockChain and ledger
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ChainValidationBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int chainLength;
+
+    private Object node, chainIndex, head, tip, forkParent;
+    private String headHash, forkParentHash;
+    private MethodHandle verifyBlock, computeChainState, findCommonAncestor;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Throwable {
+        HashMap<String, Object> remoteNodes = new HashMap<>();
+        MethodHandle newRemote = Project.constructor("RemoteNode", String.class, String.class, int.class);
+        for (String account : SyntheticChain.ACCOUNTS) {
+            remoteNodes.put(account, newRemote.invoke(account, "127.0.0.1", 0));
+        }
+        //in-memory transport and no block store, the benchmark never sends anything or touches the disk
+        Object network = Project.constructor("LoopbackNetwork", long.class, long.class, double.class).invoke(0L, 0L, 0.0);
+        Object transport = Project.constructor("LoopbackTransport", Project.type("LoopbackNetwork")).invoke(network);
+        node = Project.constructor("Node", String.class, HashMap.class, Project.type("Transport"), String.class)
+                .invoke(SyntheticChain.ACCOUNTS[0], remoteNodes, transport, (String) null);
+
+        SyntheticChain chain = SyntheticChain.build(chainLength);
+        Map<String, Object> blockChain = (Map<String, Object>) Project.field(node, "blockChain");
+        Object chainIndex = Project.field(node, "chainIndex");
+        Object ledger = Project.field(node, "ledger");
+        MethodHandle getHash = Project.method("Block", "getHash");
+        MethodHandle getPrevious = Project.method("Block", "getPrevious");
+        MethodHandle getCredits = Project.method("Block", "getCredits");
+        MethodHandle getTransactions = Project.method("Block", "getTransactions");
+        MethodHandle addToIndex = Project.method("ChainIndex", "add", String.class, String.class);
+        MethodHandle addToLedger = Project.method("Ledger", "addBlock", String.class, Map.class, Project.type("[LTransaction;"));
+        for (Object block : chain.blocks()) {
+            String hash = (String) getHash.invoke(block);
+            blockChain.put(hash, block);
+            addToIndex.invoke(chainIndex, hash, (String) getPrevious.invoke(block));
+            addToLedger.invoke(ledger, hash, getCredits.invoke(block), getTransactions.invoke(block));
+        }
+
+        head = chain.head();
+        //a block far enough back that its state has to be rebuilt from a snapshot, like the parent of a competing branch
+        forkParent = chain.blocks().get(chain.blocks().size() - 40);
+        tip = chain.mineTip(blockChain);
+
+        this.chainIndex = chainIndex;
+        headHash = (String) getHash.invoke(head);
+        forkParentHash = (String) getHash.invoke(forkParent);
+        findCommonAncestor = Project.method("ChainIndex", "findCommonAncestor", String.class, String.class);
+        verifyBlock = Project.method("Node", "verifyBlock", Project.type("Block"));
+        computeChainState = Project.method("Node", "computeChainState", Project.type("Block"));
+    }
+
+    @Benchmark
+    public boolean verifyBlock() throws Throwable {
+        return (boolean) verifyBlock.invoke(node, tip);
+    }
+
+    @Benchmark
+    public Object computeChainState() throws Throwable {
+        return computeChainState.invoke(node, head);
+    }
+
+    //alternates between the fork parent and the head, so neither lookup is served from the ledger's cached state
+    @Benchmark
+    public Object forkParentState() throws Throwable {
+        computeChainState.invoke(node, forkParent);
+        return computeChainState.invoke(node, head);
+    }
+
+    @Benchmark
+    public Object commonAncestor() throws Throwable {
+        return findCommonAncestor.invoke(chainIndex, headHash, forkParentHash);
+    }
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import com.google.common.hash.Hashing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+//hashes/sec of the mining inner loop, plus the PoS block hash
+//throughput is reported per operation, and one operation of hashAttempt/stringHashAttempt is one nonce tried
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MiningBenchmark {
+    //same shape as a real header prefix: number, coinbase, transactions, previous
+    private static final String HEADER_PREFIX = "42ben|100[ben|omar|10, ben|hattie|10, ben|xuying|10]" + "ab".repeat(32);
+    //about one in 16 hashes meets this, so mineBlock measures a handful of attempts plus the setup around them
+    private static final String EASY_TARGET = "0" + "f".repeat(63);
+
+    private Object hasher, block, stakeBlock;
+    private MethodHandle hash, mineBlock, makeBlockHash;
+    private long nonce;
+
+    @Setup
+    public void setup() throws Throwable {
+        hasher = Project.constructor("MiningHasher", String.class).invoke(HEADER_PREFIX);
+        //exact invocation keeps the handle call out of the measurement
+        hash = Project.method("MiningHasher", "hash", long.class).asType(MethodType.methodType(byte[].class, Object.class, long.class));
+
+        block = Project.constructor("Block", int.class, String.class, String.class).invoke(42, "ben", "ab".repeat(32));
+        Project.method("Block", "setTarget", String.class).invoke(block, EASY_TARGET);
+        mineBlock = Project.method("Block", "mineBlock");
+
+        stakeBlock = Project.constructor("StakeBlock", int.class, String.class, int.class, String.class).invoke(42, "ben", 30, "ab".repeat(32));
+        Project.method("StakeBlock", "setTransactions", Project.type("[LTransaction;")).invoke(stakeBlock, SampleData.transactions(3));
+        makeBlockHash = Project.method("StakeBlock", "makeBlockHash");
+    }
+
+    @Benchmark
+    public byte[] hashAttempt() throws Throwable {
+        return (byte[]) hash.invokeExact(hasher, nonce++);
+    }
+
+    //what every attempt used to cost: rebuild the string, hash it with Guava, hex encode, compare the prefix
+    @Benchmark
+    public boolean stringHashAttempt() {
+        StringBuilder data = new StringBuilder();
+        data.append(HEADER_PREFIX);
+        data.append(nonce++);
+        String hex = Hashing.sha256().hashString(data.toString(), StandardCharsets.UTF_8).toString();
+        return hex.startsWith("000000");
+    }
+
+    @Benchmark
+    public Object mineBlock() throws Throwable {
+        mineBlock.invoke(block);
+        return block;
+    }
+
+    @Benchmark
+    public Object stakeBlockHash() throws Throwable {
+        makeBlockHash.invoke(stakeBlock);
+        return stakeBlock;
+    }
+}
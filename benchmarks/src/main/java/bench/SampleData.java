@@ -0,0 +1,49 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.util.Map;
+
+//individual blocks and transactions shaped like the ones the nodes produce
+final class SampleData {
+    private SampleData() {
+    }
+
+    //returns a Transaction[] moving coins from the first account to the others
+    static Object transactions(int count) throws Throwable {
+        MethodHandle newTransaction = Project.constructor("Transaction", String.class, String.class, int.class);
+        Object transactions = Array.newInstance(Project.type("Transaction"), count);
+        for (int i = 0; i < count; i++) {
+            String to = SyntheticChain.ACCOUNTS[1 + i % (SyntheticChain.ACCOUNTS.length - 1)];
+            Array.set(transactions, i, newTransaction.invoke(SyntheticChain.ACCOUNTS[0], to, 10 + i));
+        }
+        return transactions;
+    }
+
+    //a mined PoW block with count transactions
+    static Object block(int count) throws Throwable {
+        Object block = Project.constructor("Block", int.class, String.class, String.class).invoke(42, "ben", "ab".repeat(32));
+        Project.method("Block", "setTransactions", Project.type("[LTransaction;")).invoke(block, transactions(count));
+        Project.method("Block", "setTarget", String.class).invoke(block, "0" + "f".repeat(63));
+        Project.method("Block", "mineBlock").invoke(block);
+        return block;
+    }
+
+    //a PoS block that collected a signature from every other account
+    static Object stakeBlock(int count) throws Throwable {
+        Object stakeBlock = Project.constructor("StakeBlock", int.class, String.class, int.class, String.class).invoke(42, "ben", 30, "ab".repeat(32));
+        Project.method("StakeBlock", "setTransactions", Project.type("[LTransaction;")).invoke(stakeBlock, transactions(count));
+        Project.method("StakeBlock", "makeBlockHash").invoke(stakeBlock);
+
+        //an RSA-1024 signature is 128 bytes, 172 characters of base64
+        String signature = "A".repeat(172);
+        Project.method("StakeBlock", "setSignature", String.class).invoke(stakeBlock, signature);
+        Project.method("StakeBlock", "setFinalSignature", String.class).invoke(stakeBlock, signature);
+        @SuppressWarnings("unchecked")
+        Map<String, String> verifiers = (Map<String, String>) Project.method("StakeBlock", "getVerifiers").invoke(stakeBlock);
+        for (int i = 1; i < SyntheticChain.ACCOUNTS.length; i++) {
+            verifiers.put(SyntheticChain.ACCOUNTS[i], signature);
+        }
+        return stakeBlock;
+    }
+}
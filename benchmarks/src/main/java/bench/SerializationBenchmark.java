@@ -0,0 +1,131 @@
+package bench;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+//encoding and decoding blocks and whole messages: Gson (the -DjsonWire debugging format) against BinaryCodec (the default wire format)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"5", "1000"})
+    public int transactionCount;
+
+    private final Gson gson = new Gson();
+    private Class<?> blockType, stakeBlockType, messageType;
+    private Object block, stakeBlock, blockMessage, stakeBlockMessage;
+    private String blockJson, stakeBlockJson, blockMessageJson, stakeBlockMessageJson;
+    private byte[] blockMessageBinary, stakeBlockMessageBinary;
+    private MethodHandle encodeMessage, readMessage;
+
+    @Setup
+    public void setup() throws Throwable {
+        blockType = Project.type("Block");
+        stakeBlockType = Project.type("StakeBlock");
+        messageType = Project.type("Message");
+        encodeMessage = Project.method("BinaryCodec", "encodeMessage", messageType);
+        readMessage = Project.method("BinaryCodec", "readMessage", ByteBuffer.class);
+
+        block = SampleData.block(transactionCount);
+        stakeBlock = SampleData.stakeBlock(transactionCount);
+        blockJson = gson.toJson(block);
+        stakeBlockJson = gson.toJson(stakeBlock);
+
+        //Node.broadcastBlock: an empty payload, the block rides alongside it
+        blockMessage = Project.constructor("Message", String.class, String.class, String.class, String.class)
+                .invoke("ben", "omar", "BLOCK", "{}");
+        Project.method("Message", "setBlock", blockType).invoke(blockMessage, block);
+        //StakeNode.sendAddBlock: leader term and id in the payload, plus the block and its meta
+        JsonObject blockInfo = new JsonObject();
+        blockInfo.addProperty("leaderTerm", 7);
+        blockInfo.addProperty("leaderId", "ben");
+        stakeBlockMessage = Project.constructor("Message", String.class, String.class, String.class, String.class)
+                .invoke("ben", "omar", "BLOCK", blockInfo.toString());
+        Project.method("Message", "setStakeBlock", stakeBlockType).invoke(stakeBlockMessage, stakeBlock);
+        Object blockMeta = Project.constructor("BlockMeta", int.class, String.class).invoke(7, "ben");
+        Project.method("Message", "setBlockMeta", Project.type("BlockMeta")).invoke(stakeBlockMessage, blockMeta);
+
+        blockMessageJson = gson.toJson(blockMessage);
+        stakeBlockMessageJson = gson.toJson(stakeBlockMessage);
+        blockMessageBinary = (byte[]) encodeMessage.invoke(blockMessage);
+        stakeBlockMessageBinary = (byte[]) encodeMessage.invoke(stakeBlockMessage);
+    }
+
+    @Benchmark
+    public String encodeBlock() {
+        return gson.toJson(block);
+    }
+
+    @Benchmark
+    public Object decodeBlock() {
+        return gson.fromJson(blockJson, blockType);
+    }
+
+    @Benchmark
+    public String encodeStakeBlock() {
+        return gson.toJson(stakeBlock);
+    }
+
+    @Benchmark
+    public Object decodeStakeBlock() {
+        return gson.fromJson(stakeBlockJson, stakeBlockType);
+    }
+
+    @Benchmark
+    public String encodeBlockMessage() {
+        return gson.toJson(blockMessage);
+    }
+
+    @Benchmark
+    public Object decodeBlockMessage() {
+        return gson.fromJson(blockMessageJson, messageType);
+    }
+
+    @Benchmark
+    public String encodeStakeBlockMessage() {
+        return gson.toJson(stakeBlockMessage);
+    }
+
+    @Benchmark
+    public Object decodeStakeBlockMessage() {
+        return gson.fromJson(stakeBlockMessageJson, messageType);
+    }
+
+    @Benchmark
+    public Object encodeBinaryBlockMessage() throws Throwable {
+        return encodeMessage.invoke(blockMessage);
+    }
+
+    @Benchmark
+    public Object decodeBinaryBlockMessage() throws Throwable {
+        return readMessage.invoke(ByteBuffer.wrap(blockMessageBinary));
+    }
+
+    @Benchmark
+    public Object encodeBinaryStakeBlockMessage() throws Throwable {
+        return encodeMessage.invoke(stakeBlockMessage);
+    }
+
+    @Benchmark
+    public Object decodeBinaryStakeBlockMessage() throws Throwable {
+        return readMessage.invoke(ByteBuffer.wrap(stakeBlockMessageBinary));
+    }
+}
@@ -0,0 +1,145 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//cost of the block signatures StakeNode makes and checks: Signer (2048 bit RSA) against the scheme it replaced (the hash "encrypted"
+//with the private key through a shared Cipher, and decrypted again to compare, with the 1024 bit RSA keys it used)
+//checkBlock is what addBlock does for a block with verifierCount verifier signatures plus the final one, and
+//cachedCheckBlock the same for a block whose signatures are already in the node's SignatureCache (seen before)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+    private static final String BLOCK_HASH = "00000034ab".repeat(6) + "cdef";
+
+    @Param({"16"})
+    public int verifierCount;
+
+    private Object signer;
+    private PublicKey publicKey;
+    private String signature;
+    private Map<String, String> blockSignatures;
+    private Map<String, PublicKey> publicKeys;
+    private Object signatureCache;
+    private MethodHandle sign, verify, verifyAll, cachedVerifyAll;
+
+    private Cipher legacyCipher;
+    private KeyPair legacyKeys;
+    private String legacySignature;
+    private String[] legacyBlockSignatures;
+    private PublicKey[] legacyBlockKeys;
+
+    @Setup
+    public void setup() throws Throwable {
+        MethodHandle newSigner = Project.constructor("Signer");
+        MethodHandle getPublicKey = Project.method("Signer", "getPublicKey");
+        sign = Project.method("Signer", "sign", String.class);
+        verify = Project.method("Signer", "verify", String.class, String.class, PublicKey.class);
+        verifyAll = Project.method("Signer", "verifyAll", String.class, Map.class, Map.class);
+
+        cachedVerifyAll = Project.method("SignatureCache", "verifyAll", String.class, Map.class, Map.class);
+
+        signer = newSigner.invoke();
+        publicKey = (PublicKey) getPublicKey.invoke(signer);
+        signature = (String) sign.invoke(signer, BLOCK_HASH);
+
+        legacyCipher = Cipher.getInstance("RSA");
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        legacyKeys = keyPairGenerator.generateKeyPair();
+        legacySignature = legacySign(BLOCK_HASH, legacyKeys);
+
+        //every signer has its own key, like the nodes
+        blockSignatures = new HashMap<>();
+        publicKeys = new HashMap<>();
+        legacyBlockSignatures = new String[verifierCount + 1];
+        legacyBlockKeys = new PublicKey[verifierCount + 1];
+        for (int i = 0; i <= verifierCount; i++) {
+            Object curSigner = newSigner.invoke();
+            blockSignatures.put("node" + i, (String) sign.invoke(curSigner, BLOCK_HASH));
+            publicKeys.put("node" + i, (PublicKey) getPublicKey.invoke(curSigner));
+
+            KeyPair curKeys = keyPairGenerator.generateKeyPair();
+            legacyBlockSignatures[i] = legacySign(BLOCK_HASH, curKeys);
+            legacyBlockKeys[i] = curKeys.getPublic();
+        }
+
+        signatureCache = Project.constructor("SignatureCache").invoke();
+        cachedVerifyAll.invoke(signatureCache, BLOCK_HASH, blockSignatures, publicKeys);
+    }
+
+    @Benchmark
+    public String sign() throws Throwable {
+        return (String) sign.invoke(signer, BLOCK_HASH);
+    }
+
+    @Benchmark
+    public boolean verify() throws Throwable {
+        return (boolean) verify.invoke(BLOCK_HASH, signature, publicKey);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<String> checkBlock() throws Throwable {
+        return (List<String>) verifyAll.invoke(BLOCK_HASH, blockSignatures, publicKeys);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<String> cachedCheckBlock() throws Throwable {
+        return (List<String>) cachedVerifyAll.invoke(signatureCache, BLOCK_HASH, blockSignatures, publicKeys);
+    }
+
+    @Benchmark
+    public String legacySign() throws Exception {
+        return legacySign(BLOCK_HASH, legacyKeys);
+    }
+
+    @Benchmark
+    public boolean legacyVerify() throws Exception {
+        return legacyVerify(legacySignature, legacyKeys.getPublic());
+    }
+
+    //the old scheme only ever checked one signature at a time
+    @Benchmark
+    public boolean legacyCheckBlock() throws Exception {
+        boolean allMatch = true;
+        for (int i = 0; i < legacyBlockSignatures.length; i++) allMatch &= legacyVerify(legacyBlockSignatures[i], legacyBlockKeys[i]);
+        return allMatch;
+    }
+
+    private String legacySign(String hash, KeyPair keys) throws Exception {
+        legacyCipher.init(Cipher.ENCRYPT_MODE, keys.getPrivate());
+        return Base64.getEncoder().encodeToString(legacyCipher.doFinal(hash.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private boolean legacyVerify(String signature, PublicKey key) throws Exception {
+        legacyCipher.init(Cipher.DECRYPT_MODE, key);
+        return BLOCK_HASH.equals(new String(legacyCipher.doFinal(Base64.getDecoder().decode(signature)), StandardCharsets.UTF_8));
+    }
+}
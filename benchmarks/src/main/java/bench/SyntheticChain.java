@@ -0,0 +1,99 @@
+package bench;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+//builds PoW chains locally so benchmarks don't need a running cluster
+//blocks are created through Gson so their hashes and timestamps can be chosen instead of mined,
+//only the tip (the block actually being validated) is mined for real
+final class SyntheticChain {
+    static final String[] ACCOUNTS = {"ben", "xuying", "omar", "hattie"};
+    private static final Gson GSON = new Gson();
+    private static final String FIRST_HASH = "0".repeat(64);
+    private static final String MAX_TARGET = "0000" + "f".repeat(60);
+    private static final long BLOCK_TIME = 10_000;
+
+    private final List<Object> blocks;
+
+    private SyntheticChain(List<Object> blocks) {
+        this.blocks = blocks;
+    }
+
+    //length blocks, each paying the coinbase to the next account and moving 1 coin between the others
+    static SyntheticChain build(int length) {
+        Class<?> blockType = Project.type("Block");
+        List<Object> blocks = new ArrayList<>(length);
+        String previous = FIRST_HASH;
+
+        for (int number = 1; number <= length; number++) {
+            String hash = syntheticHash(number);
+            blocks.add(GSON.fromJson(blockJson(number, previous, hash, 3), blockType));
+            previous = hash;
+        }
+
+        return new SyntheticChain(blocks);
+    }
+
+    static JsonObject blockJson(int number, String previous, String hash, int transactionCount) {
+        JsonObject coinbase = new JsonObject();
+        coinbase.addProperty("person", ACCOUNTS[number % ACCOUNTS.length]);
+        coinbase.addProperty("amount", 100);
+
+        JsonArray transactions = new JsonArray();
+        for (int i = 0; i < transactionCount; i++) {
+            JsonObject txn = new JsonObject();
+            txn.addProperty("from", ACCOUNTS[number % ACCOUNTS.length]);
+            txn.addProperty("to", ACCOUNTS[(number + i + 1) % ACCOUNTS.length]);
+            txn.addProperty("amount", 1);
+            transactions.add(txn);
+        }
+
+        JsonObject block = new JsonObject();
+        block.addProperty("number", number);
+        block.addProperty("nonce", 0);
+        block.add("coinbase", coinbase);
+        block.add("transactions", transactions);
+        block.addProperty("previous", previous);
+        block.addProperty("hash", hash);
+        block.addProperty("target", MAX_TARGET);
+        block.addProperty("timestamp", number * BLOCK_TIME);
+        return block;
+    }
+
+    private static String syntheticHash(int number) {
+        return String.format("%064x", number);
+    }
+
+    List<Object> blocks() {
+        return blocks;
+    }
+
+    Object head() {
+        return blocks.get(blocks.size() - 1);
+    }
+
+    //a properly mined block on top of head(), valid under the retarget rules
+    Object mineTip(Map<String, Object> blockChain) throws Throwable {
+        MethodHandle newBlock = Project.constructor("Block", int.class, String.class, String.class);
+        MethodHandle getNumber = Project.method("Block", "getNumber");
+        MethodHandle getHash = Project.method("Block", "getHash");
+        MethodHandle setTarget = Project.method("Block", "setTarget", String.class);
+        MethodHandle setTimestamp = Project.method("Block", "setTimestamp", long.class);
+        MethodHandle mineBlock = Project.method("Block", "mineBlock");
+        MethodHandle nextTarget = Project.method("Difficulty", "nextTarget", Project.type("Block"), Map.class);
+        MethodHandle nextTimestamp = Project.method("Difficulty", "nextTimestamp", Project.type("Block"));
+
+        Object head = head();
+        Object tip = newBlock.invoke((int) getNumber.invoke(head) + 1, ACCOUNTS[0], (String) getHash.invoke(head));
+        setTarget.invoke(tip, (String) nextTarget.invoke(head, blockChain));
+        setTimestamp.invoke(tip, (long) nextTimestamp.invoke(head));
+        mineBlock.invoke(tip);
+        return tip;
+    }
+}
@@ -0,0 +1,83 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//checking a block's transactions against the balances before it: Ledger.canApply as the nodes call it, and
+//TransactionValidator's one-pass and grouped (parallel) checks on their own
+//every sender can pay, so each check has to go through the whole block
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionValidationBenchmark {
+    @Param({"100", "5000", "50000"})
+    public int transactionCount;
+
+    @Param({"10", "10000"})
+    public int accountCount;
+
+    private static final String PARENT_HASH = "cd".repeat(32);
+    private Object ledger, transactions;
+    private Map<String, Integer> balances, credits;
+    private MethodHandle ledgerCanApply, validatorCanApply;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random random = new Random(42);
+        MethodHandle newTransaction = Project.constructor("Transaction", String.class, String.class, String.class, int.class, int.class);
+        transactions = Array.newInstance(Project.type("Transaction"), transactionCount);
+        for (int i = 0; i < transactionCount; i++) {
+            String from = "account" + random.nextInt(accountCount), to = "account" + random.nextInt(accountCount);
+            Array.set(transactions, i, newTransaction.invoke("txn" + i, from, to, 1 + random.nextInt(5), random.nextInt(3)));
+        }
+
+        balances = new HashMap<>();
+        for (int i = 0; i < accountCount; i++) balances.put("account" + i, 1_000_000);
+        credits = Collections.singletonMap("account0", 10);
+
+        //one block that credits everyone their balance, the block being checked goes on top of it
+        Object chainIndex = Project.constructor("ChainIndex").invoke();
+        Project.method("ChainIndex", "add", String.class, String.class).invoke(chainIndex, PARENT_HASH, "0".repeat(64));
+        ledger = Project.constructor("Ledger", Project.type("ChainIndex")).invoke(chainIndex);
+        Object noTransactions = Array.newInstance(Project.type("Transaction"), 0);
+        Project.method("Ledger", "addBlock", String.class, Map.class, Project.type("[LTransaction;")).invoke(ledger, PARENT_HASH, balances, noTransactions);
+
+        ledgerCanApply = Project.method("Ledger", "canApply", String.class, Map.class, Project.type("[LTransaction;"));
+        validatorCanApply = Project.method("TransactionValidator", "canApply", Map.class, Map.class, Project.type("[LTransaction;"), boolean.class);
+    }
+
+    @Benchmark
+    public boolean ledger() throws Throwable {
+        return (boolean) ledgerCanApply.invoke(ledger, PARENT_HASH, credits, transactions);
+    }
+
+    @Benchmark
+    public boolean inOrder() throws Throwable {
+        return (boolean) validatorCanApply.invoke(balances, credits, transactions, false);
+    }
+
+    @Benchmark
+    public boolean grouped() throws Throwable {
+        return (boolean) validatorCanApply.invoke(balances, credits, transactions, true);
+    }
+}
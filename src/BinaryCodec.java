@@ -0,0 +1,291 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+
+//compact binary form of blocks and messages, used by the block store and on the wire
+//fixed width big-endian integers, hashes and targets as their raw 32 bytes, strings as int length + UTF-8 (-1 for null)
+//decoding reads straight from a ByteBuffer, so a memory-mapped segment or a network read buffer can be decoded without copying it first
+public class BinaryCodec {
+    //first byte of every binary message; JSON messages start with '{' so the two can't be mixed up
+    public static final byte WIRE_VERSION = 1;
+    private static final int HASH_BYTES = 32;
+    private static final byte HAS_BLOCK = 1, HAS_STAKE_BLOCK = 2, HAS_BLOCK_META = 4;
+    //what precedes each transaction; stored blocks from before transactions had ids only have the first two
+    private static final byte NO_TRANSACTION = 0, LEGACY_TRANSACTION = 1, MEMPOOL_TRANSACTION = 2;
+
+    public static byte[] encodeBlock(Block block) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            writeBlock(out, block);
+            out.flush();
+        } catch (IOException e) {
+            //writing to a byte array never fails
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    //the meta goes first so it can be read on its own without decoding the whole block
+    public static byte[] encodeStakeBlock(StakeBlock block, BlockMeta meta) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            writeBlockMeta(out, meta);
+            writeStakeBlock(out, block);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static byte[] encodeMessage(Message message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            writeMessage(out, message);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static void writeMessage(DataOutputStream out, Message message) throws IOException {
+        out.writeByte(WIRE_VERSION);
+        out.writeLong(message.getGuid().getMostSignificantBits());
+        out.writeLong(message.getGuid().getLeastSignificantBits());
+        writeString(out, message.getType());
+        writeString(out, message.getSender());
+        writeString(out, message.getDestination());
+        writeString(out, message.getPayload());
+
+        int contents = (message.getBlock() != null ? HAS_BLOCK : 0) | (message.getStakeBlock() != null ? HAS_STAKE_BLOCK : 0)
+                | (message.getBlockMeta() != null ? HAS_BLOCK_META : 0);
+        out.writeByte(contents);
+        if (message.getBlock() != null) writeBlock(out, message.getBlock());
+        if (message.getStakeBlock() != null) writeStakeBlock(out, message.getStakeBlock());
+        if (message.getBlockMeta() != null) writeBlockMeta(out, message.getBlockMeta());
+    }
+
+    //throws IllegalArgumentException for a version we don't know
+    public static Message readMessage(ByteBuffer in) {
+        byte version = in.get();
+        if (version != WIRE_VERSION) throw new IllegalArgumentException("unknown message version " + version);
+
+        UUID guid = new UUID(in.getLong(), in.getLong());
+        String type = readString(in), sender = readString(in), destination = readString(in), payload = readString(in);
+        Message message = new Message(guid, sender, destination, type, payload);
+
+        byte contents = in.get();
+        if ((contents & HAS_BLOCK) != 0) message.setBlock(readBlock(in));
+        if ((contents & HAS_STAKE_BLOCK) != 0) message.setStakeBlock(readStakeBlock(in));
+        if ((contents & HAS_BLOCK_META) != 0) message.setBlockMeta(readBlockMeta(in));
+        return message;
+    }
+
+    public static void writeBlock(DataOutputStream out, Block block) throws IOException {
+        out.writeInt(block.getNumber());
+        out.writeLong(block.getNonce());
+        writeString(out, block.getCoinbase().getPerson());
+        out.writeInt(block.getCoinbase().getAmount());
+        writeTransactions(out, block.getTransactions());
+        writeHash(out, block.getPrevious());
+        writeHash(out, block.getHash());
+        writeHash(out, block.getTarget());
+        out.writeLong(block.getTimestamp());
+    }
+
+    public static Block readBlock(ByteBuffer in) {
+        int number = in.getInt();
+        long nonce = in.getLong();
+        Coinbase coinbase = new Coinbase(readString(in), in.getInt());
+        Transaction[] transactions = readTransactions(in);
+        String previous = readHash(in), hash = readHash(in), target = readHash(in);
+        long timestamp = in.getLong();
+
+        return new Block(number, nonce, coinbase, transactions, previous, hash, target, timestamp);
+    }
+
+    public static void writeStakeBlock(DataOutputStream out, StakeBlock block) throws IOException {
+        out.writeInt(block.getNumber());
+        writeString(out, block.getStakePerson().getStake_person());
+        out.writeInt(block.getStakePerson().getStake_amount());
+        writeTransactions(out, block.getTransactions());
+        writeHash(out, block.getPrevious());
+        writeHash(out, block.getHash());
+        writeSignature(out, block.getSignature());
+        writeSignature(out, block.getFinalSignature());
+
+        out.writeInt(block.getVerifiers().size());
+        for (Map.Entry<String, String> curVerifier : block.getVerifiers().entrySet()) {
+            writeString(out, curVerifier.getKey());
+            writeSignature(out, curVerifier.getValue());
+        }
+    }
+
+    public static StakeBlock readStakeBlock(ByteBuffer in) {
+        int number = in.getInt();
+        String stakePerson = readString(in);
+        int stakeAmount = in.getInt();
+        Transaction[] transactions = readTransactions(in);
+        String previous = readHash(in);
+
+        //the constructor derives the reward from the stake amount, same as when the block was made
+        StakeBlock block = new StakeBlock(number, stakePerson, stakeAmount, previous);
+        block.setTransactions(transactions);
+        block.setHash(readHash(in));
+        block.setSignature(readSignature(in));
+        block.setFinalSignature(readSignature(in));
+
+        int verifierCount = in.getInt();
+        for (int i = 0; i < verifierCount; i++) {
+            String verifier = readString(in);
+            block.getVerifiers().put(verifier, readSignature(in));
+        }
+        return block;
+    }
+
+    public static void writeBlockMeta(DataOutputStream out, BlockMeta meta) throws IOException {
+        out.writeInt(meta.getCreateTerm());
+        writeString(out, meta.getCreator());
+    }
+
+    public static BlockMeta readBlockMeta(ByteBuffer in) {
+        int createTerm = in.getInt();
+        return new BlockMeta(createTerm, readString(in));
+    }
+
+    //null entries are kept, they are part of the block hash
+    private static void writeTransactions(DataOutputStream out, Transaction[] transactions) throws IOException {
+        if (transactions == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(transactions.length);
+        for (Transaction curTxn : transactions) {
+            if (curTxn == null) {
+                out.writeByte(NO_TRANSACTION);
+            }
+            else if (curTxn.getId() == null) {
+                out.writeByte(LEGACY_TRANSACTION);
+                writeString(out, curTxn.getFrom());
+                writeString(out, curTxn.getTo());
+                out.writeInt(curTxn.getAmount());
+            }
+            else {
+                out.writeByte(MEMPOOL_TRANSACTION);
+                writeString(out, curTxn.getId());
+                writeString(out, curTxn.getFrom());
+                writeString(out, curTxn.getTo());
+                out.writeInt(curTxn.getAmount());
+                out.writeInt(curTxn.getFee());
+            }
+        }
+    }
+
+    private static Transaction[] readTransactions(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0) return null;
+        checkRemaining(in, count);
+
+        Transaction[] transactions = new Transaction[count];
+        for (int i = 0; i < count; i++) {
+            byte kind = in.get();
+            if (kind == LEGACY_TRANSACTION) {
+                String from = readString(in), to = readString(in);
+                transactions[i] = new Transaction(from, to, in.getInt());
+            }
+            else if (kind == MEMPOOL_TRANSACTION) {
+                String id = readString(in), from = readString(in), to = readString(in);
+                int amount = in.getInt();
+                transactions[i] = new Transaction(id, from, to, amount, in.getInt());
+            }
+            else if (kind != NO_TRANSACTION) {
+                throw new IllegalArgumentException("unknown transaction kind " + kind);
+            }
+        }
+        return transactions;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        checkRemaining(in, length);
+
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    //64 hex characters -> 32 bytes, a leading flag byte covers null
+    public static void writeHash(DataOutputStream out, String hash) throws IOException {
+        out.writeBoolean(hash != null);
+        if (hash != null) out.write(Difficulty.targetBytes(hash));
+    }
+
+    public static String readHash(ByteBuffer in) {
+        if (in.get() == 0) return null;
+
+        byte[] bytes = new byte[HASH_BYTES];
+        in.get(bytes);
+        return MiningHasher.toHex(bytes);
+    }
+
+    //signatures are base64 text in the blocks, store the raw bytes instead
+    private static void writeSignature(DataOutputStream out, String signature) throws IOException {
+        if (signature == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = Base64.getDecoder().decode(signature);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readSignature(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        checkRemaining(in, length);
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    //a corrupt or hostile length shouldn't make us allocate more than the buffer could possibly hold
+    private static void checkRemaining(ByteBuffer in, int length) {
+        if (length > in.remaining()) throw new BufferUnderflowException();
+    }
+}
@@ -1,7 +1,5 @@
-import com.google.common.hash.Hashing;
-
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.HashMap;
 
 public class Block {
     public static final String FIRST_HASH = "0".repeat(64);
@@ -10,9 +8,12 @@ public class Block {
     private Coinbase coinbase;
     private Transaction[] transactions;
     private String previous, hash;
+    //proof of work target and the time mining started, both part of the hash; blocks from before targets existed have
+    //no timestamp (0) and are hashed without either, so older chains keep their hashes
+    private String target;
+    private long timestamp;
     private final int coinbaseAmount = 100;
-    private final int maxTransactions = 5;
-    private boolean keepMining;
+    private transient volatile boolean keepMining;
 
     public Block(int number, String coinbasePerson, String previous) {
         this.number = number;
@@ -21,7 +22,19 @@ public class Block {
         this.transactions = new Transaction[0];
     }
 
-    public void mineBlock(String validPrefix) {
+    //rebuilds a block exactly as it was mined, used when reading blocks back from storage
+    public Block(int number, long nonce, Coinbase coinbase, Transaction[] transactions, String previous, String hash, String target, long timestamp) {
+        this.number = number;
+        this.nonce = nonce;
+        this.coinbase = coinbase;
+        this.transactions = transactions;
+        this.previous = previous;
+        this.hash = hash;
+        this.target = target;
+        this.timestamp = timestamp;
+    }
+
+    public void mineBlock() {
         /* TODO:
          * -pick a new nonce
          * -hash everything together
@@ -30,32 +43,70 @@ public class Block {
          *      -coinbase
          *      -transactions
          *      -previous
-         * -check if the hash starts with validPrefix
+         * -check if the hash meets the block's target
          * -this method will finish once it finds a nonce and valid hash
          */
+        startMining();
+        mineStripe(this.nonce + 1, 1);
+    }
+
+    public void startMining() {
         keepMining = true;
         this.hash = null;
+    }
+
+    //try nonces firstNonce, firstNonce + stride, firstNonce + 2*stride, ... until a valid hash is found or mining stops
+    //several threads can mine the same block at once as long as each one gets its own firstNonce in [1, stride]
+    public boolean mineStripe(long firstNonce, long stride) {
+        //the prefix never changes while mining, so hash it once and only feed the nonce per attempt
+        MiningHasher hasher = new MiningHasher(headerPrefix());
+        byte[] targetBytes = Difficulty.targetBytes(getTarget());
+
+        long curNonce = firstNonce;
+        while (keepMining) {
+            byte[] digest = hasher.hash(curNonce);
+
+            if (Difficulty.meetsTarget(digest, targetBytes)) {
+                return foundNonce(curNonce, MiningHasher.toHex(digest));
+            }
+            curNonce += stride;
+        }
+
+        return false;
+    }
+
+    //recompute the hash from the block contents, used to check blocks received from other nodes
+    public String computeHash() {
+        return MiningHasher.toHex(new MiningHasher(headerPrefix()).hash(this.nonce));
+    }
+
+    public boolean hasValidProofOfWork() {
+        return this.hash != null && this.hash.equals(computeHash()) && Difficulty.meetsTarget(this.hash, getTarget());
+    }
 
+    //everything that goes into the hash before the nonce
+    private String headerPrefix() {
         StringBuilder data = new StringBuilder();
         data.append(this.number);
         data.append(this.coinbase.toString());
         data.append(Arrays.toString(this.transactions));
         data.append(this.previous);
-
-        while (keepMining && (this.hash == null || !this.hash.startsWith(validPrefix))) {
-            this.nonce++;
-            StringBuilder finalData = new StringBuilder();
-            finalData.append(data);
-            finalData.append(this.nonce);
-            this.hash = hashBlock(finalData.toString());
+        if (!isLegacy()) {
+            //the separator keeps digits from moving between the timestamp and the nonce
+            data.append(getTarget());
+            data.append(this.timestamp).append('|');
         }
+        return data.toString();
     }
 
-    private String hashBlock(String data) {
-        String sha256hex = Hashing.sha256()
-                .hashString(data, StandardCharsets.UTF_8)
-                .toString();
-        return sha256hex;
+    //only the first thread to find a valid nonce gets to keep it
+    private synchronized boolean foundNonce(long nonce, String hash) {
+        if (!keepMining) return false;
+
+        this.nonce = nonce;
+        this.hash = hash;
+        keepMining = false;
+        return true;
     }
 
     public void stopMining() { this.keepMining = false; }
@@ -64,8 +115,27 @@ public class Block {
         return number;
     }
 
+    public long getNonce() { return nonce; }
+
     public Coinbase getCoinbase() { return coinbase; }
 
+    //coins this block creates, before any of its transactions, plus the fees its transactions pay the miner
+    public HashMap<String, Integer> getCredits() {
+        HashMap<String, Integer> credits = new HashMap<>();
+        credits.put(coinbase.getPerson(), coinbase.getAmount() + totalFees(transactions));
+        return credits;
+    }
+
+    public static int totalFees(Transaction[] transactions) {
+        int fees = 0;
+        if (transactions == null) return fees;
+
+        for (Transaction curTxn : transactions) {
+            if (curTxn != null) fees += curTxn.getFee();
+        }
+        return fees;
+    }
+
     public void setTransactions(Transaction[] transactions) { this.transactions = transactions; }
     public Transaction[] getTransactions() {
         return transactions;
@@ -78,4 +148,14 @@ public class Block {
     public String getHash() {
         return hash;
     }
+
+    public void setTarget(String target) { this.target = target; }
+    public String getTarget() { return target == null ? Difficulty.LEGACY_TARGET : target; }
+
+    //has to be set before mining, since it's part of the hash
+    public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+    public long getTimestamp() { return timestamp; }
+
+    //mined before targets and timestamps existed
+    public boolean isLegacy() { return timestamp == 0; }
 }
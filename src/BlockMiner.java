@@ -2,22 +2,50 @@ public class BlockMiner extends Thread{
     public static final String WAITING = "WAITING", READY = "READY";
     private volatile Block block;
     private volatile String blockState;
-    private final String hashPrefix = "000000";
+    private final int workerCount;
+    private final EventQueue events;
 
-    public BlockMiner() {
+    public BlockMiner(EventQueue events) {
+        this(NodeRunner.MINER_THREADS, events);
+    }
+
+    //a finished block is posted to events as BLOCK_MINED
+    public BlockMiner(int workerCount, EventQueue events) {
+        this.events = events;
         this.blockState = WAITING;
         this.block = null;
+        this.workerCount = Math.max(1, workerCount);
     }
 
     public void run() {
         this.blockState = WAITING;
         if (this.block != null) {
-            System.out.println(Colors.ANSI_BLUE + "BlockMiner (" + Thread.currentThread().getName() + "): Mining block " + block.getNumber() + Colors.ANSI_RESET);
-            this.block.mineBlock(hashPrefix);
+            System.out.println(Colors.ANSI_BLUE + "BlockMiner (" + Thread.currentThread().getName() + "): Mining block " + block.getNumber() + " with " + workerCount + " workers" + Colors.ANSI_RESET);
+            Block miningBlock = this.block;
+            miningBlock.startMining();
+
+            //each worker gets its own stripe of the nonce space: worker i tries i+1, i+1+workerCount, ...
+            Thread[] workers = new Thread[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                long firstNonce = i + 1;
+                workers[i] = new Thread(() -> miningBlock.mineStripe(firstNonce, workerCount), getName() + "-worker-" + i);
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+
+            boolean interrupted = false;
+            try {
+                for (Thread curWorker : workers) curWorker.join();
+            } catch (InterruptedException e) {
+                //interrupt() already told the block to stop, the workers will finish their current hash and exit
+                miningBlock.stopMining();
+                interrupted = true;
+            }
 
-            if (!this.isInterrupted()) {
+            if (!interrupted && !this.isInterrupted() && miningBlock.getHash() != null) {
                 this.blockState = READY;
                 System.out.println(Colors.ANSI_BLUE + "BlockMiner (" + Thread.currentThread().getName() + "): Finished mining block " + block.getNumber() + " [..." + block.getHash().substring(57) + "]" + Colors.ANSI_RESET);
+                events.post(EventQueue.BLOCK_MINED, miningBlock);
             }
             else {
                 clearBlock();
@@ -0,0 +1,110 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+//the blocks a stake leader has proposed and is collecting verifier signatures for, oldest first, at most depth of them
+//each one builds on the one before it (the first on the head), so the next block can be proposed as soon as the last one
+//is sent out instead of after its signatures are in; they go into the chain oldest first as they get enough stake
+//a block that doesn't make it takes every block after it down too, since they all build on it
+//a leader proposes at most termLimit blocks in a term (pipelined or not), so a term still makes a bounded number of blocks
+public class BlockPipeline {
+    private final int depth, termLimit;
+    private final ArrayDeque<Proposal> proposals;
+    private int proposedThisTerm;
+
+    public static class Proposal {
+        private final StakeBlock block;
+        private final BlockMeta meta;
+        private final HashMap<String, Integer> stateAfter;
+        private final List<String> verifiers;
+        private final TimerService.Timer timeout;
+
+        private Proposal(StakeBlock block, BlockMeta meta, HashMap<String, Integer> stateAfter, List<String> verifiers, TimerService.Timer timeout) {
+            this.block = block;
+            this.meta = meta;
+            this.stateAfter = stateAfter;
+            this.verifiers = verifiers;
+            this.timeout = timeout;
+        }
+
+        public StakeBlock getBlock() { return block; }
+
+        public BlockMeta getMeta() { return meta; }
+
+        //balances after the block without its verifier rewards, which aren't known yet; rewards only ever add coins,
+        //so a block that can go on top of these can go on top of the real ones too
+        public HashMap<String, Integer> getStateAfter() { return stateAfter; }
+
+        //the nodes asked to verify the block; the next block goes to the same ones, who know this block's balances
+        public List<String> getVerifiers() { return verifiers; }
+
+        public TimerService.Timer getTimeout() { return timeout; }
+    }
+
+    public BlockPipeline(int depth, int termLimit) {
+        this.depth = depth;
+        this.termLimit = termLimit;
+        this.proposals = new ArrayDeque<>();
+    }
+
+    public boolean isEmpty() { return proposals.isEmpty(); }
+
+    public boolean isFull() { return proposals.size() >= depth; }
+
+    //call when this node becomes the leader for a new term
+    public void startTerm() { proposedThisTerm = 0; }
+
+    //whether another block can be proposed: there is room for it and the term's limit isn't used up
+    public boolean canPropose() { return !isFull() && proposedThisTerm < termLimit; }
+
+    public int size() { return proposals.size(); }
+
+    //stateAfter belongs to the pipeline afterwards, timeout goes off if the block doesn't get enough stake in time and is
+    //cancelled when the block leaves the pipeline
+    public void add(StakeBlock block, BlockMeta meta, HashMap<String, Integer> stateAfter, List<String> verifiers, TimerService.Timer timeout) {
+        proposals.add(new Proposal(block, meta, stateAfter, verifiers, timeout));
+        proposedThisTerm++;
+    }
+
+    public Proposal get(String hash) {
+        for (Proposal curProposal : proposals) {
+            if (curProposal.block.getHash().equals(hash)) return curProposal;
+        }
+        return null;
+    }
+
+    public Proposal getFirst() { return proposals.peekFirst(); }
+
+    public Proposal getLast() { return proposals.peekLast(); }
+
+    public Proposal removeFirst() {
+        Proposal first = proposals.pollFirst();
+        if (first != null) TimerService.cancel(first.timeout);
+        return first;
+    }
+
+    //the block the first proposal builds on, null if there are none
+    public String getBase() { return proposals.isEmpty() ? null : proposals.peekFirst().block.getPrevious(); }
+
+    //ids of the transactions already in a proposed block, so the next block doesn't take them again
+    public Set<String> getTransactionIds() {
+        HashSet<String> ids = new HashSet<>();
+        for (Proposal curProposal : proposals) {
+            for (Transaction curTxn : curProposal.block.getTransactions()) {
+                if (curTxn != null) ids.add(curTxn.getId());
+            }
+        }
+        return ids;
+    }
+
+    //drop every proposal, returns what was dropped oldest first
+    public List<Proposal> clear() {
+        List<Proposal> dropped = new ArrayList<>(proposals);
+        for (Proposal curProposal : dropped) TimerService.cancel(curProposal.timeout);
+        proposals.clear();
+        return dropped;
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+//append-only block log split into fixed size segment files
+//record layout: [int length][int crc32][byte kind][hash][payload], length and crc cover everything after the crc
+//the hash sits in front of the payload so opening the store only has to read hashes, not decode blocks
+//every block is written once when it is accepted; full segments never change and are read through read-only memory
+//mappings, the segment being appended to is read through its channel
+//on open the segments are scanned to rebuild the hash -> location index, and a torn record at the end
+//(crash in the middle of a write) is cut off instead of corrupting the whole store; damage anywhere else can't be a torn
+//write, so opening fails instead of silently losing every block after it
+//with FSYNC_INTERVAL a block is forced to disk at most FSYNC_INTERVAL_MS after it was appended, even if nothing comes after it
+public class BlockStore {
+    public static final String FSYNC_ALWAYS = "ALWAYS", FSYNC_INTERVAL = "INTERVAL", FSYNC_NEVER = "NEVER";
+    public static final byte BLOCK_KIND = 1, STAKE_BLOCK_KIND = 2;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long FSYNC_INTERVAL_MS = 1000;
+    private static final int HEADER_BYTES = 8, HASH_FIELD_BYTES = 33;
+    //one thread for every store in the process, it only forces interval-synced stores to disk
+    private static final ScheduledThreadPoolExecutor SYNCER = createSyncer();
+
+    private final File directory;
+    private final String fsyncPolicy;
+    //location = segment number in the high 32 bits, offset of the record header in the low 32
+    private final HashMap<String, Long> index;
+    private final List<String> hashes;
+    private final HashMap<Integer, MappedByteBuffer> mappedSegments;
+    private final CRC32 crc;
+    private FileChannel activeChannel;
+    private int activeSegment;
+    private long activeSize, lastSync;
+    //appended blocks that aren't forced to disk yet, and whether SYNCER already has a sync queued for them
+    private boolean unsynced, syncScheduled, closed;
+
+    public BlockStore(String directory, String fsyncPolicy) throws IOException {
+        this.directory = new File(directory);
+        this.fsyncPolicy = fsyncPolicy;
+        this.index = new HashMap<>();
+        this.hashes = new ArrayList<>();
+        this.mappedSegments = new HashMap<>();
+        this.crc = new CRC32();
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("could not create block store directory " + directory);
+        }
+
+        int segment = 0;
+        while (segmentFile(segment + 1).exists()) segment++;
+        for (int i = 0; i <= segment; i++) {
+            scanSegment(i, i == segment);
+        }
+
+        this.activeSegment = segment;
+        openActiveSegment();
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    public synchronized void appendBlock(Block block) throws IOException {
+        append(block.getHash(), BLOCK_KIND, BinaryCodec.encodeBlock(block));
+    }
+
+    public synchronized void appendStakeBlock(StakeBlock block, BlockMeta meta) throws IOException {
+        append(block.getHash(), STAKE_BLOCK_KIND, BinaryCodec.encodeStakeBlock(block, meta));
+    }
+
+    public synchronized boolean contains(String hash) {
+        return index.containsKey(hash);
+    }
+
+    //hashes in the order they were appended, parents always come before their children
+    public synchronized List<String> getHashes() {
+        return new ArrayList<>(hashes);
+    }
+
+    public synchronized Block readBlock(String hash) throws IOException {
+        ByteBuffer payload = readPayload(hash, BLOCK_KIND);
+        return payload == null ? null : BinaryCodec.readBlock(payload);
+    }
+
+    public synchronized StakeBlock readStakeBlock(String hash) throws IOException {
+        ByteBuffer payload = readPayload(hash, STAKE_BLOCK_KIND);
+        if (payload == null) return null;
+
+        BinaryCodec.readBlockMeta(payload);
+        return BinaryCodec.readStakeBlock(payload);
+    }
+
+    public synchronized BlockMeta readBlockMeta(String hash) throws IOException {
+        ByteBuffer payload = readPayload(hash, STAKE_BLOCK_KIND);
+        return payload == null ? null : BinaryCodec.readBlockMeta(payload);
+    }
+
+    public synchronized void sync() throws IOException {
+        activeChannel.force(false);
+        lastSync = System.currentTimeMillis();
+        unsynced = false;
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) return;
+
+        sync();
+        activeChannel.close();
+        mappedSegments.clear();
+        closed = true;
+    }
+
+    private void append(String hash, byte kind, byte[] payload) throws IOException {
+        if (index.containsKey(hash)) return;
+
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream(HASH_FIELD_BYTES + 1);
+        DataOutputStream prefixOut = new DataOutputStream(prefix);
+        prefixOut.writeByte(kind);
+        BinaryCodec.writeHash(prefixOut, hash);
+        byte[] kindAndHash = prefix.toByteArray();
+
+        int length = kindAndHash.length + payload.length;
+        if (activeSize > 0 && activeSize + HEADER_BYTES + length > SEGMENT_SIZE) {
+            sync();
+            activeChannel.close();
+            activeSegment++;
+            openActiveSegment();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.putInt(length);
+        record.putInt(checksum(kindAndHash, payload));
+        record.put(kindAndHash);
+        record.put(payload);
+        record.flip();
+
+        long offset = activeSize;
+        while (record.hasRemaining()) {
+            activeSize += activeChannel.write(record, activeSize);
+        }
+
+        index.put(hash, location(activeSegment, offset));
+        hashes.add(hash);
+        unsynced = true;
+
+        long sinceSync = System.currentTimeMillis() - lastSync;
+        if (fsyncPolicy.equals(FSYNC_ALWAYS) || (fsyncPolicy.equals(FSYNC_INTERVAL) && sinceSync >= FSYNC_INTERVAL_MS)) {
+            sync();
+        }
+        else if (fsyncPolicy.equals(FSYNC_INTERVAL) && !syncScheduled) {
+            syncScheduled = true;
+            SYNCER.schedule(this::scheduledSync, FSYNC_INTERVAL_MS - sinceSync, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void scheduledSync() {
+        syncScheduled = false;
+        if (closed || !unsynced) return;
+
+        try {
+            sync();
+        } catch (IOException e) {
+            System.out.println(Colors.ANSI_RED + "WARNING BlockStore: could not sync " + directory + Colors.ANSI_RESET);
+            e.printStackTrace();
+        }
+    }
+
+    //returns the payload of the record positioned after its kind and hash, or null if the hash isn't stored
+    private ByteBuffer readPayload(String hash, byte expectedKind) throws IOException {
+        Long location = index.get(hash);
+        if (location == null) return null;
+
+        int segment = (int) (location >>> 32);
+        int offset = (int) (location & 0xffffffffL);
+        ByteBuffer record = readRecord(segment, offset);
+
+        if (record.get() != expectedKind) return null;
+        BinaryCodec.readHash(record);
+        return record.slice();
+    }
+
+    //the body of the record at offset (everything after the length and crc)
+    //the active segment is still growing, so instead of mapping it again whenever a read goes past the end of the
+    //last mapping (up to SEGMENT_SIZE each time) just the record is read from its channel
+    private ByteBuffer readRecord(int segment, int offset) throws IOException {
+        if (segment == activeSegment) {
+            int length = readFromActive(offset, HEADER_BYTES).getInt(0);
+            return readFromActive(offset + HEADER_BYTES, length);
+        }
+
+        MappedByteBuffer mapped = mapSegment(segment);
+        int length = mapped.getInt(offset);
+        ByteBuffer record = mapped.duplicate();
+        record.position(offset + HEADER_BYTES);
+        record.limit(offset + HEADER_BYTES + length);
+        return record.slice();
+    }
+
+    private ByteBuffer readFromActive(long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        while (bytes.hasRemaining()) {
+            if (activeChannel.read(bytes, position + bytes.position()) < 0) {
+                throw new IOException("block store segment " + segmentFile(activeSegment) + " ends in the middle of a record");
+            }
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    //read-only mapping of a full segment, made once since full segments never change
+    private MappedByteBuffer mapSegment(int segment) throws IOException {
+        MappedByteBuffer mapped = mappedSegments.get(segment);
+        if (mapped != null) return mapped;
+
+        try (FileChannel channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mappedSegments.put(segment, mapped);
+        return mapped;
+    }
+
+    private void scanSegment(int segment, boolean isLast) throws IOException {
+        File file = segmentFile(segment);
+        if (!file.exists()) return;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int offset = 0;
+
+            while (offset + HEADER_BYTES <= size) {
+                int length = mapped.getInt(offset), storedCrc = mapped.getInt(offset + 4);
+                if (length <= 0 || offset + HEADER_BYTES + (long) length > size) break;
+
+                ByteBuffer record = mapped.duplicate();
+                record.position(offset + HEADER_BYTES);
+                record.limit(offset + HEADER_BYTES + length);
+                if (checksum(record.slice()) != storedCrc) break;
+
+                record.get();
+                String hash = BinaryCodec.readHash(record);
+                index.put(hash, location(segment, offset));
+                hashes.add(hash);
+                offset += HEADER_BYTES + length;
+            }
+
+            if (offset < size) {
+                if (!isLast) throw new IOException("block store segment " + file + " is corrupt at offset " + offset);
+                System.out.println(Colors.ANSI_RED + "WARNING BlockStore: dropping " + (size - offset) + " bytes of incomplete records at the end of " + file + Colors.ANSI_RESET);
+                channel.truncate(offset);
+            }
+            else if (!isLast) {
+                mappedSegments.put(segment, mapped);
+            }
+        }
+    }
+
+    private void openActiveSegment() throws IOException {
+        activeChannel = FileChannel.open(segmentFile(activeSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = activeChannel.size();
+    }
+
+    private static ScheduledThreadPoolExecutor createSyncer() {
+        return new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "BlockStore-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("segment_%06d.log", segment));
+    }
+
+    private int checksum(byte[] kindAndHash, byte[] payload) {
+        crc.reset();
+        crc.update(kindAndHash);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private int checksum(ByteBuffer recordBody) {
+        crc.reset();
+        crc.update(recordBody);
+        return (int) crc.getValue();
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+//parent pointers and heights for every known block, shared by both node types
+//each entry also has a skip pointer to an ancestor further back (same scheme as bitcoin's pskip),
+//so finding the ancestor at any height is O(log n) and nothing here ever recurses
+public class ChainIndex {
+    private static final int LOCATOR_DENSE = 10;
+    private final HashMap<String, Entry> entries;
+
+    private static class Entry {
+        private final String hash;
+        private final Entry parent, skip;
+        private final int height;
+
+        private Entry(String hash, Entry parent) {
+            this.hash = hash;
+            this.parent = parent;
+            this.height = parent == null ? 0 : parent.height + 1;
+            this.skip = parent == null ? null : parent.ancestor(skipHeight(height));
+        }
+
+        private Entry ancestor(int targetHeight) {
+            if (targetHeight > height || targetHeight < 0) return null;
+
+            Entry walk = this;
+            int walkHeight = height;
+            while (walkHeight > targetHeight) {
+                int skipHeight = skipHeight(walkHeight), prevSkipHeight = skipHeight(walkHeight - 1);
+                //take the skip pointer unless it overshoots, or the parent's skip pointer would land closer
+                if (walk.skip != null && (skipHeight == targetHeight
+                        || (skipHeight > targetHeight && !(prevSkipHeight < skipHeight - 2 && prevSkipHeight >= targetHeight)))) {
+                    walk = walk.skip;
+                    walkHeight = skipHeight;
+                }
+                else {
+                    walk = walk.parent;
+                    walkHeight--;
+                }
+            }
+            return walk;
+        }
+    }
+
+    //the genesis "previous" hash is the root at height 0, so the first block has height 1 like its number
+    public ChainIndex() {
+        this.entries = new HashMap<>();
+        this.entries.put(Block.FIRST_HASH, new Entry(Block.FIRST_HASH, null));
+    }
+
+    public boolean contains(String hash) {
+        return entries.containsKey(hash);
+    }
+
+    //returns false if the previous block is not indexed yet
+    public boolean add(String hash, String previous) {
+        if (entries.containsKey(hash)) return true;
+
+        Entry parent = entries.get(previous);
+        if (parent == null) return false;
+
+        entries.put(hash, new Entry(hash, parent));
+        return true;
+    }
+
+    public int getHeight(String hash) {
+        Entry entry = entries.get(hash);
+        return entry == null ? -1 : entry.height;
+    }
+
+    public String getPrevious(String hash) {
+        Entry entry = entries.get(hash);
+        return entry == null || entry.parent == null ? null : entry.parent.hash;
+    }
+
+    //hash of the block at the given height on the chain ending at hash
+    public String getAncestor(String hash, int height) {
+        Entry entry = entries.get(hash);
+        if (entry == null) return null;
+
+        Entry ancestor = entry.ancestor(height);
+        return ancestor == null ? null : ancestor.hash;
+    }
+
+    //last block both chains share, Block.FIRST_HASH if they only share the root
+    //binary search on height, each probe is an O(log n) ancestor lookup
+    public String findCommonAncestor(String first, String second) {
+        Entry a = entries.get(first), b = entries.get(second);
+        if (a == null || b == null) return null;
+
+        int low = 0, high = Math.min(a.height, b.height);
+        while (low < high) {
+            int mid = (low + high + 1) / 2;
+            if (a.ancestor(mid) == b.ancestor(mid)) low = mid;
+            else high = mid - 1;
+        }
+        return a.ancestor(low).hash;
+    }
+
+    //whether ancestor is on the chain ending at hash (a block counts as its own ancestor)
+    public boolean isAncestor(String ancestor, String hash) {
+        Entry a = entries.get(ancestor), entry = entries.get(hash);
+        return a != null && entry != null && entry.ancestor(a.height) == a;
+    }
+
+    //a sample of the chain ending at hash for a peer to find where our chains split: the last LOCATOR_DENSE blocks,
+    //then ever bigger steps back, ending with the root, so it's O(log n) long however long the chain is
+    public List<String> getLocator(String hash) {
+        List<String> locator = new ArrayList<>();
+        Entry entry = entries.get(hash);
+        if (entry == null) return locator;
+
+        int height = entry.height, step = 1;
+        while (height > 0) {
+            locator.add(entry.ancestor(height).hash);
+            if (locator.size() >= LOCATOR_DENSE) step *= 2;
+            height -= step;
+        }
+        locator.add(Block.FIRST_HASH);
+        return locator;
+    }
+
+    //blocks after ancestor up to and including hash, oldest first
+    public List<String> getPath(String ancestor, String hash) {
+        List<String> path = new ArrayList<>();
+        Entry stop = entries.get(ancestor);
+        Entry walk = entries.get(hash);
+
+        while (walk != null && walk != stop) {
+            path.add(walk.hash);
+            walk = walk.parent;
+        }
+
+        Collections.reverse(path);
+        return path;
+    }
+
+    private static int skipHeight(int height) {
+        if (height < 2) return 0;
+        //odd heights skip a little less far so that both parities can reach any height quickly
+        return (height & 1) != 0 ? clearLowestBit(clearLowestBit(height - 1)) + 1 : clearLowestBit(height);
+    }
+
+    private static int clearLowestBit(int n) {
+        return n & (n - 1);
+    }
+}
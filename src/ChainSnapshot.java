@@ -0,0 +1,69 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//what the API serves: the head, the balances after it and the hash of every block on the head's chain by height
+//a snapshot never changes once it's made; the node loop makes a new one whenever its head moves and swaps it in,
+//so API threads read without locks and always see one consistent head
+public class ChainSnapshot {
+    private final String headHash;
+    private final int headNumber;
+    private final Map<String, Integer> balances;
+    //mainChain[h] is the block at height h for h < length, mainChain[0] is the genesis "previous" hash
+    //the array is shared with the snapshots before and after this one: a snapshot that only extends the chain writes its
+    //blocks past the end of this one in place, so a slot a snapshot can see is never written again; only a reorg (or an
+    //array that is full) starts a new array
+    private final String[] mainChain;
+    private final int length;
+    //how much of mainChain any snapshot has filled in, only the node loop looks at it
+    private final AtomicInteger filled;
+
+    private ChainSnapshot(String headHash, int headNumber, Map<String, Integer> balances, String[] mainChain, int length, AtomicInteger filled) {
+        this.headHash = headHash;
+        this.headNumber = headNumber;
+        this.balances = balances;
+        this.mainChain = mainChain;
+        this.length = length;
+        this.filled = filled;
+    }
+
+    public static ChainSnapshot empty() {
+        return new ChainSnapshot(Block.FIRST_HASH, 0, Collections.emptyMap(), new String[]{ Block.FIRST_HASH }, 1, new AtomicInteger(1));
+    }
+
+    //the snapshot after the head moved to the end of path, which starts just above forkHeight on this snapshot's chain
+    //a plain extension appends to the shared array, a reorg copies the part of the chain up to forkHeight into a new one
+    public ChainSnapshot advance(String headHash, int headNumber, Map<String, Integer> balances, int forkHeight, List<String> path) {
+        int newLength = forkHeight + 1 + path.size();
+        String[] chain = mainChain;
+        AtomicInteger chainFilled = filled;
+
+        boolean extension = forkHeight + 1 == length && filled.get() == length;
+        if (!extension || newLength > chain.length) {
+            //room for as many blocks again, so growing the chain costs O(1) copies per block on average
+            chain = new String[newLength * 2];
+            System.arraycopy(mainChain, 0, chain, 0, forkHeight + 1);
+            chainFilled = new AtomicInteger(forkHeight + 1);
+        }
+
+        for (int i = 0; i < path.size(); i++) chain[forkHeight + 1 + i] = path.get(i);
+        chainFilled.set(newLength);
+
+        return new ChainSnapshot(headHash, headNumber, Collections.unmodifiableMap(balances), chain, newLength, chainFilled);
+    }
+
+    public String getHeadHash() { return headHash; }
+
+    public int getHeadNumber() { return headNumber; }
+
+    public int getHeight() { return length - 1; }
+
+    public Integer getBalance(String account) { return balances.get(account); }
+
+    //hash of the block at that height on the head's chain, null if there isn't one
+    public String getHashAt(int height) {
+        if (height < 1 || height >= length) return null;
+        return mainChain[height];
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//download bookkeeping for catching up with peers, shared by both node types; only used from the node loop
+//a node that is behind (new, restarted, or back from a partition) first asks peers for the hashes on their chain after the
+//last block we have in common (GETHEADERS/HEADERS, a few thousand at a time), then downloads the blocks themselves in
+//batches spread over every peer that listed them (GETDATA), so a long gap comes down from several peers at once instead
+//of one parent at a time; blocks that arrive before their parent wait in the node's OrphanPool
+//a batch that doesn't arrive within REQUEST_TIMEOUT goes back in the queue and is asked of another peer
+public class ChainSync {
+    public static final String LOCATOR = "locator", HASHES = "hashes", MORE = "more";
+    //most hashes in one HEADERS reply
+    public static final int MAX_HEADERS = 2000;
+    //blocks that arrive before their parent wait this long at most, and no more than this many at once
+    public static final int ORPHAN_POOL_SIZE = 1024;
+    public static final long ORPHAN_MAX_AGE = 60_000;
+    //while downloading, the node loop wakes up at least this often to retry requests that timed out
+    public static final long TICK = 500;
+    //how many peers a node asks for headers when it starts
+    public static final int START_PEERS = 3;
+    //most blocks in flight at once, has to stay well under the orphan pool size since they can arrive in any order
+    private static final int MAX_IN_FLIGHT = 256;
+    private static final int BATCH_SIZE = 16, MAX_IN_FLIGHT_PER_PEER = 64;
+    private static final long REQUEST_TIMEOUT = 5000, HEADERS_TIMEOUT = 5000;
+    //blocks still to download, oldest first, with the peers that have them
+    private LinkedHashMap<String, List<String>> queued;
+    private final HashMap<String, Request> inFlight;
+    private final HashMap<String, Integer> peerLoad;
+    private final HashMap<String, Long> headerRequests;
+
+    private static class Request {
+        private final String peer;
+        private final List<String> sources;
+        private final long sent;
+
+        private Request(String peer, List<String> sources, long sent) {
+            this.peer = peer;
+            this.sources = sources;
+            this.sent = sent;
+        }
+    }
+
+    public ChainSync() {
+        this.queued = new LinkedHashMap<>();
+        this.inFlight = new HashMap<>();
+        this.peerLoad = new HashMap<>();
+        this.headerRequests = new HashMap<>();
+    }
+
+    //true if headers should be asked of the peer now, false if we're still waiting on an earlier request to it
+    public boolean startHeaderRequest(String peer) {
+        long now = System.currentTimeMillis();
+        Long sent = headerRequests.get(peer);
+        if (sent != null && now - sent < HEADERS_TIMEOUT) return false;
+
+        headerRequests.put(peer, now);
+        return true;
+    }
+
+    public void finishHeaderRequest(String peer) {
+        headerRequests.remove(peer);
+    }
+
+    //queue blocks a peer listed, in chain order; the caller leaves out the ones it already has
+    public void addHeaders(List<String> hashes, String peer) {
+        for (String curHash : hashes) {
+            Request request = inFlight.get(curHash);
+            if (request != null) {
+                if (!request.sources.contains(peer)) request.sources.add(peer);
+                continue;
+            }
+
+            List<String> sources = queued.computeIfAbsent(curHash, hash -> new ArrayList<>());
+            if (!sources.contains(peer)) sources.add(peer);
+        }
+    }
+
+    public boolean isPending(String hash) {
+        return queued.containsKey(hash) || inFlight.containsKey(hash);
+    }
+
+    public boolean isActive() {
+        return !queued.isEmpty() || !inFlight.isEmpty();
+    }
+
+    //a block arrived, returns true if it was one we were downloading
+    public boolean received(String hash) {
+        Request request = inFlight.remove(hash);
+        if (request != null) {
+            peerLoad.merge(request.peer, -1, Integer::sum);
+            return true;
+        }
+        return queued.remove(hash) != null;
+    }
+
+    //what to ask of whom now, as peer -> hashes; requests that timed out are handed to another peer that has the block
+    public Map<String, List<String>> nextRequests() {
+        long now = System.currentTimeMillis();
+        retryTimedOut(now);
+
+        Map<String, List<String>> requests = new HashMap<>();
+        Iterator<Map.Entry<String, List<String>>> candidates = queued.entrySet().iterator();
+
+        //only the front of the queue is looked at, so this stays cheap while every peer is busy and the queue is long
+        for (int scanned = 0; scanned < MAX_IN_FLIGHT && candidates.hasNext() && inFlight.size() < MAX_IN_FLIGHT; scanned++) {
+            Map.Entry<String, List<String>> curCandidate = candidates.next();
+            String peer = leastLoaded(curCandidate.getValue(), requests);
+            if (peer == null) continue;
+
+            candidates.remove();
+            inFlight.put(curCandidate.getKey(), new Request(peer, curCandidate.getValue(), now));
+            peerLoad.merge(peer, 1, Integer::sum);
+            requests.computeIfAbsent(peer, key -> new ArrayList<>()).add(curCandidate.getKey());
+        }
+        return requests;
+    }
+
+    //the source with the fewest blocks in flight that still has room, filling the batch it's already getting first
+    private String leastLoaded(List<String> sources, Map<String, List<String>> requests) {
+        String best = null;
+        int bestLoad = Integer.MAX_VALUE;
+
+        for (String curSource : sources) {
+            int load = peerLoad.getOrDefault(curSource, 0);
+            if (load >= MAX_IN_FLIGHT_PER_PEER) continue;
+
+            List<String> batch = requests.get(curSource);
+            if (batch != null && batch.size() < BATCH_SIZE) return curSource;
+            if (batch == null && load < bestLoad) {
+                best = curSource;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private void retryTimedOut(long now) {
+        LinkedHashMap<String, List<String>> retries = new LinkedHashMap<>();
+
+        Iterator<Map.Entry<String, Request>> requests = inFlight.entrySet().iterator();
+        while (requests.hasNext()) {
+            Map.Entry<String, Request> curRequest = requests.next();
+            Request request = curRequest.getValue();
+            if (now - request.sent < REQUEST_TIMEOUT) continue;
+
+            requests.remove();
+            peerLoad.merge(request.peer, -1, Integer::sum);
+            //try the others first, but keep the peer if it's the only one that has the block
+            if (request.sources.size() > 1) request.sources.remove(request.peer);
+            retries.put(curRequest.getKey(), request.sources);
+        }
+
+        //the ones that timed out are the oldest, so they go back at the front
+        if (!retries.isEmpty()) {
+            retries.putAll(queued);
+            queued = retries;
+        }
+    }
+}
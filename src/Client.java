@@ -1,51 +1,148 @@
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
 
-public class Client extends Thread{
-    public static final String DONE = "DONE", WAITING = "WAITING", EXCEPTION = "EXCEPTION";
-    private volatile String messageState;
-    private String address;
-    private int port;
-    private Message message;
+//long-lived connection to one remote node, messages to that node are queued here and written in order by this thread
+//everything queued while a write is in progress goes out together in the next write, so a burst costs one flush
+//if the node can't be reached the queued messages are posted back to the owner as failed and the connection is retried with backoff
+public class Client extends Thread {
+    private static final int MIN_BACKOFF = 100, MAX_BACKOFF = 5000, WRITE_BUFFER_SIZE = 64 * 1024;
+    private final RemoteNode remote;
+    private final LinkedBlockingQueue<Message> outbound;
+    private final EventQueue events;
+    private final Gson gson;
+    private volatile boolean running;
+    private Socket socket;
+    private DataOutputStream socketOut;
+    private int backoff;
 
-    public Client(String address, int port, Message message) {
-        this.address = address;
-        this.port = port;
-        this.message = message;
-        this.messageState = WAITING;
+    public Client(RemoteNode remote, EventQueue events) {
+        this.remote = remote;
+        this.outbound = new LinkedBlockingQueue<>();
+        this.events = events;
+        this.gson = new Gson();
+        this.running = true;
+        this.backoff = MIN_BACKOFF;
+        this.setDaemon(true);
+    }
+
+    public void send(Message message) {
+        outbound.add(message);
+    }
+
+    public int getQueuedMessageCount() { return outbound.size(); }
+
+    public void stopClient() {
+        this.running = false;
+        this.interrupt();
     }
 
     public void run() {
-        try {
-            Socket socket = new Socket(address, port);
-            System.out.println(Colors.ANSI_GREEN + "Client (" + Thread.currentThread().getName() + "): Connection made to " + address + ":" + port + Colors.ANSI_RESET);
+        ArrayList<Message> batch = new ArrayList<>();
 
-            PrintStream socketOut = new PrintStream(socket.getOutputStream());
+        while (running) {
+            try {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
 
-            Gson gson = new Gson();
-            String messageJson = gson.toJson(message);
-            socketOut.println(messageJson);
-            socketOut.println();
+                if (socket == null && !connect()) {
+                    failAll(batch);
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                }
+                else {
+                    write(batch);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                failAll(batch);
+                running = false;
+            }
+        }
 
-            socketOut.close();
-            socket.close();
+        disconnect();
+    }
 
-            this.messageState = DONE;
-            System.out.println(Colors.ANSI_GREEN + "Client (" + Thread.currentThread().getName() + "): Sent " + message.getType() + " message [" + message.getGuid() + "] to " + message.getDestination() + Colors.ANSI_RESET);
+    private boolean connect() {
+        try {
+            socket = new Socket(remote.getAddress(), remote.getPort());
+            socket.setTcpNoDelay(true);
+            socketOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE));
+            backoff = MIN_BACKOFF;
+            System.out.println(Colors.ANSI_GREEN + "Client (" + Thread.currentThread().getName() + "): Connection made to " + remote.getAddress() + ":" + remote.getPort() + Colors.ANSI_RESET);
+            return true;
         } catch (IOException e) {
-            System.out.println(Colors.ANSI_RED + "WARNING Client (" + Thread.currentThread().getName() + "): Communication failed with node " + message.getDestination() + Colors.ANSI_RESET);
-            this.messageState = EXCEPTION;
-            //e.printStackTrace();
+            System.out.println(Colors.ANSI_RED + "WARNING Client (" + Thread.currentThread().getName() + "): Could not connect to node " + remote.getId() + ", retrying in " + backoff + " ms" + Colors.ANSI_RESET);
+            disconnect();
+            return false;
         }
     }
 
-    public Message getMessage() { return message; }
+    //one length-prefixed frame per message, see MessageHolder
+    private void write(ArrayList<Message> batch) {
+        try {
+            Iterator<Message> messages = batch.iterator();
+            while (messages.hasNext()) {
+                byte[] frame = encode(messages.next());
+                if (frame == null) {
+                    messages.remove();
+                    continue;
+                }
+
+                socketOut.writeInt(frame.length);
+                socketOut.write(frame);
+            }
+            socketOut.flush();
 
-    public String getMessageState() { return messageState; }
-}
\ No newline at end of file
+            for (Message curMessage : batch) {
+                System.out.println(Colors.ANSI_GREEN + "Client (" + Thread.currentThread().getName() + "): Sent " + curMessage.getType() + " message [" + curMessage.getGuid() + "] to " + curMessage.getDestination() + Colors.ANSI_RESET);
+            }
+        } catch (IOException e) {
+            //we can't tell how much of the batch the other side got, so all of it counts as failed
+            System.out.println(Colors.ANSI_RED + "WARNING Client (" + Thread.currentThread().getName() + "): Communication failed with node " + remote.getId() + Colors.ANSI_RESET);
+            failAll(batch);
+            disconnect();
+        }
+    }
+
+    //null if the message can't be sent (a malformed hash or signature, or too big for the other side to accept),
+    //then it's dropped and reported as failed; the rest of the batch and the connection carry on
+    private byte[] encode(Message message) {
+        byte[] frame;
+        try {
+            frame = NodeRunner.JSON_WIRE ? gson.toJson(message).getBytes(StandardCharsets.UTF_8) : BinaryCodec.encodeMessage(message);
+        } catch (RuntimeException e) {
+            System.out.println(Colors.ANSI_RED + "WARNING Client (" + Thread.currentThread().getName() + "): Dropping " + message.getType() + " message [" + message.getGuid() + "] to " + message.getDestination() + ", it could not be encoded: " + e + Colors.ANSI_RESET);
+            events.post(EventQueue.SEND_FAILED, message);
+            return null;
+        }
+
+        if (frame.length > MessageHolder.MAX_FRAME_SIZE) {
+            System.out.println(Colors.ANSI_RED + "WARNING Client (" + Thread.currentThread().getName() + "): Dropping " + message.getType() + " message [" + message.getGuid() + "] to " + message.getDestination() + ", it is " + frame.length + " bytes" + Colors.ANSI_RESET);
+            events.post(EventQueue.SEND_FAILED, message);
+            return null;
+        }
+        return frame;
+    }
+
+    private void failAll(ArrayList<Message> batch) {
+        for (Message curMessage : batch) events.post(EventQueue.SEND_FAILED, curMessage);
+    }
+
+    private void disconnect() {
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        socket = null;
+        socketOut = null;
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+//how many of the blocks on the head chain each node made, kept up to date as the head moves instead of counted again
+//whenever a node asks whether it (or a candidate) holds too big a share of the chain
+//with a window only the last window blocks count, 0 counts the whole chain
+//moving the head costs O(log n) per block connected or disconnected (the ancestor lookup for the block sliding in or
+//out of the window), asking for a share is O(1), or O(pending log n) with a window and blocks that aren't on the chain yet
+public class CreatorTally {
+    private final int window;
+    private final ChainIndex chainIndex;
+    private final Function<String, String> creatorOf;
+    private final HashMap<String, Integer> counts;
+    private int total;
+    private String head;
+
+    public CreatorTally(int window, ChainIndex chainIndex, Function<String, String> creatorOf) {
+        this.window = window;
+        this.chainIndex = chainIndex;
+        this.creatorOf = creatorOf;
+        this.counts = new HashMap<>();
+        this.total = 0;
+        this.head = Block.FIRST_HASH;
+    }
+
+    //the head moved from the end of disconnected to the end of connected, both oldest first from their common ancestor
+    public void moveHead(List<String> disconnected, List<String> connected) {
+        for (int i = disconnected.size() - 1; i >= 0; i--) {
+            String hash = disconnected.get(i);
+            add(creatorOf.apply(hash), -1);
+            //the block that slid out of the window when this one came in is back in
+            String returning = outsideWindow(hash);
+            if (returning != null) add(creatorOf.apply(returning), 1);
+        }
+        for (String hash : connected) {
+            add(creatorOf.apply(hash), 1);
+            String leaving = outsideWindow(hash);
+            if (leaving != null) add(creatorOf.apply(leaving), -1);
+        }
+
+        if (!connected.isEmpty()) head = connected.get(connected.size() - 1);
+        else if (!disconnected.isEmpty()) head = chainIndex.getPrevious(disconnected.get(0));
+    }
+
+    //the node's share of the counted blocks in percent, rounded up
+    public int getProportion(String creator) {
+        return getProportion(creator, 0);
+    }
+
+    //the same, as if pending more blocks by the node were already on the chain (leaving out any they'd push out of the window)
+    public int getProportion(String creator, int pending) {
+        int count = counts.getOrDefault(creator, 0) + pending, counted = total + pending;
+
+        //with a window the pending blocks push out the oldest ones counted now, one each, oldest first
+        if (window > 0 && pending > 0) {
+            int headHeight = chainIndex.getHeight(head);
+            for (int height = Math.max(1, headHeight - window + 1); height <= Math.min(headHeight, headHeight - window + pending); height++) {
+                if (creator.equals(creatorOf.apply(chainIndex.getAncestor(head, height)))) count--;
+                counted--;
+            }
+        }
+
+        if (counted == 0) return 0;
+        return (int) Math.ceil(count * 100.0 / counted);
+    }
+
+    public Map<String, Integer> getCounts() { return counts; }
+
+    public int getTotal() { return total; }
+
+    //the block that stops counting when hash becomes the head, null if the whole chain up to hash fits in the window
+    private String outsideWindow(String hash) {
+        if (window <= 0) return null;
+
+        int height = chainIndex.getHeight(hash) - window;
+        return height >= 1 ? chainIndex.getAncestor(hash, height) : null;
+    }
+
+    private void add(String creator, int change) {
+        int count = counts.getOrDefault(creator, 0) + change;
+        if (count == 0) counts.remove(creator);
+        else counts.put(creator, count);
+        total += change;
+    }
+}
@@ -0,0 +1,91 @@
+import java.math.BigInteger;
+import java.util.Map;
+
+//proof of work target handling: a hash is valid when, read as a 256 bit number, it is <= the block's target
+//targets are kept as 64 character lowercase hex, same as hashes, so they can be compared as plain strings
+public class Difficulty {
+    //same as the old "000000" hex prefix, blocks written before targets existed are checked against this
+    public static final String LEGACY_TARGET = "000000" + "f".repeat(58);
+    public static final String INITIAL_TARGET = LEGACY_TARGET;
+    //easiest target retargeting is allowed to go to
+    public static final String MAX_TARGET = "0000" + "f".repeat(60);
+    //retarget every RETARGET_INTERVAL blocks, aiming for one block every TARGET_BLOCK_TIME milliseconds
+    public static final int RETARGET_INTERVAL = 10;
+    public static final long TARGET_BLOCK_TIME = 10_000;
+    //never move the target by more than this factor in a single retarget
+    private static final int MAX_ADJUST_FACTOR = 4;
+    //how far ahead of this node's clock a block's timestamp may be
+    public static final long MAX_FUTURE_TIME = 60_000;
+    private static final BigInteger MAX_TARGET_VALUE = new BigInteger(MAX_TARGET, 16);
+    private static final BigInteger HASH_SPACE = BigInteger.ONE.shiftLeft(256);
+
+    public static boolean meetsTarget(String hash, String target) {
+        return hash.length() == target.length() && hash.compareTo(target) <= 0;
+    }
+
+    //unsigned big-endian comparison of a raw digest against target bytes, used by the mining loop
+    public static boolean meetsTarget(byte[] digest, byte[] target) {
+        for (int i = 0; i < digest.length; i++) {
+            int digestByte = digest[i] & 0xff, targetByte = target[i] & 0xff;
+            if (digestByte != targetByte) return digestByte < targetByte;
+        }
+        return true;
+    }
+
+    //expected number of hashes it takes to meet the target, what fork choice adds up to compare chains
+    public static BigInteger getWork(String target) {
+        return HASH_SPACE.divide(new BigInteger(target, 16).add(BigInteger.ONE));
+    }
+
+    public static byte[] targetBytes(String target) {
+        byte[] bytes = new byte[target.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(target.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    //target the block after parent has to meet, blockChain is used to look back over the last retarget window
+    public static String nextTarget(Block parent, Map<String, Block> blockChain) {
+        if (parent == null) return INITIAL_TARGET;
+        if (parent.getNumber() < RETARGET_INTERVAL || parent.getNumber() % RETARGET_INTERVAL != 0) return parent.getTarget();
+
+        Block windowStart = parent;
+        for (int i = 1; i < RETARGET_INTERVAL && windowStart != null; i++) {
+            windowStart = blockChain.get(windowStart.getPrevious());
+        }
+        //legacy blocks have no timestamps to measure the window with
+        if (windowStart == null || windowStart.isLegacy()) return parent.getTarget();
+
+        long expected = TARGET_BLOCK_TIME * (RETARGET_INTERVAL - 1);
+        long actual = parent.getTimestamp() - windowStart.getTimestamp();
+        actual = Math.max(expected / MAX_ADJUST_FACTOR, Math.min(expected * MAX_ADJUST_FACTOR, actual));
+
+        BigInteger newTarget = new BigInteger(parent.getTarget(), 16)
+                .multiply(BigInteger.valueOf(actual))
+                .divide(BigInteger.valueOf(expected));
+        if (newTarget.compareTo(MAX_TARGET_VALUE) > 0) newTarget = MAX_TARGET_VALUE;
+        if (newTarget.signum() <= 0) newTarget = BigInteger.ONE;
+
+        String hex = newTarget.toString(16);
+        return "0".repeat(64 - hex.length()) + hex;
+    }
+
+    //timestamp for a new block on top of parent: now, but always after the parent even if its clock was ahead of ours
+    public static long nextTimestamp(Block parent) {
+        long now = System.currentTimeMillis();
+        return parent == null ? now : Math.max(now, parent.getTimestamp() + 1);
+    }
+
+    //null if the block's timestamp is fine, otherwise why not
+    //legacy blocks can only follow other legacy blocks, everything else has to be later than its parent and not too far
+    //ahead of this node's clock, so a miner can't stretch the retarget window by much
+    public static String checkTimestamp(Block block, Block parent) {
+        if (block.isLegacy()) {
+            return parent == null || parent.isLegacy() ? null : "has no timestamp but its previous block does";
+        }
+        if (parent != null && block.getTimestamp() <= parent.getTimestamp()) return "is not later than its previous block";
+        if (block.getTimestamp() > System.currentTimeMillis() + MAX_FUTURE_TIME) return "is too far in the future";
+        return null;
+    }
+}
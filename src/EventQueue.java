@@ -0,0 +1,97 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+//everything a node reacts to goes through here: messages from the server, mined blocks, election timeouts and failed sends
+//the node loop blocks in take() until something arrives, timers (TimerService) post here when they go off too,
+//so an idle node doesn't use any CPU
+//only network messages are bounded, the rest come from the node's own threads and are never dropped or blocked
+//posting and taking don't lock: events go into a lock-free queue in the order they were posted and the single consumer
+//(the node loop) parks when there's nothing to do, any post after it last looked unparks it
+public class EventQueue {
+    public static final String MESSAGE = "MESSAGE", BLOCK_MINED = "BLOCK_MINED", TIMER_EXPIRED = "TIMER_EXPIRED", SEND_FAILED = "SEND_FAILED";
+    //the other timers a stake node arms; TIMER_EXPIRED is its election timeout
+    public static final String HEARTBEAT_DUE = "HEARTBEAT_DUE", BLOCK_PERIOD_OVER = "BLOCK_PERIOD_OVER",
+            REPLY_TIMEOUT = "REPLY_TIMEOUT", PROPOSAL_EXPIRED = "PROPOSAL_EXPIRED";
+    public static final int MESSAGE_CAPACITY = 10_000;
+    private final ConcurrentLinkedQueue<Event> events;
+    private final AtomicInteger size;
+    private final Semaphore messageSlots;
+    private volatile Thread consumer;
+
+    public static class Event {
+        private final String type;
+        private final Object payload;
+
+        private Event(String type, Object payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public String getType() { return type; }
+        public Object getPayload() { return payload; }
+    }
+
+    public EventQueue() {
+        this.events = new ConcurrentLinkedQueue<>();
+        this.size = new AtomicInteger();
+        this.messageSlots = new Semaphore(MESSAGE_CAPACITY);
+        this.consumer = null;
+    }
+
+    public void post(String type, Object payload) {
+        add(new Event(type, payload));
+    }
+
+    //blocks while MESSAGE_CAPACITY messages are already waiting, which stops the server reading until the node catches up
+    public void postMessage(Message message) throws InterruptedException {
+        messageSlots.acquire();
+        add(new Event(MESSAGE, message));
+    }
+
+    //like postMessage but returns false instead of waiting when MESSAGE_CAPACITY messages are already waiting
+    public boolean offerMessage(Message message) {
+        if (!messageSlots.tryAcquire()) return false;
+        add(new Event(MESSAGE, message));
+        return true;
+    }
+
+    //next event, waiting at most timeoutMs for one (forever if timeoutMs is negative); null if the wait ran out
+    //only one thread may take from a queue
+    public Event take(long timeoutMs) throws InterruptedException {
+        //publish ourselves before looking, so a post that lands after the poll below is guaranteed to unpark us
+        consumer = Thread.currentThread();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+
+        Event event = events.poll();
+        while (event == null) {
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            if (timeoutMs < 0) {
+                LockSupport.park(this);
+            }
+            else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return null;
+                LockSupport.parkNanos(this, remaining);
+            }
+            event = events.poll();
+        }
+
+        size.decrementAndGet();
+        if (event.type.equals(MESSAGE)) messageSlots.release();
+        return event;
+    }
+
+    public int size() { return size.get(); }
+
+    private void add(Event event) {
+        events.add(event);
+        size.incrementAndGet();
+
+        Thread waiting = consumer;
+        if (waiting != null) LockSupport.unpark(waiting);
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.HashMap;
+import java.util.HashSet;
+
+//which known block is the head, shared by both node types
+//every block gets a score for the chain that ends at it and the head is the tip with the highest score; a tie keeps the
+//block seen first, so the head doesn't flip between branches that are as good as each other
+//for PoW the score is the chain's cumulative work, so a long chain of easy blocks can't outweigh more work done on a
+//shorter one; for PoS it's the term the block was made in and then its height, the same order elections use to
+//decide whose chain is more up to date
+//S is the score type, only used from the node loop
+public class ForkChoice<S extends Comparable<S>> {
+    //branches that end more than this far below the head are no longer tracked as tips, their blocks are kept
+    private static final int MAX_TIP_DEPTH = 100;
+    private final ChainIndex chainIndex;
+    private final HashMap<String, S> scores;
+    private final HashSet<String> tips;
+    private String best;
+
+    //rootScore is the score of the genesis "previous" hash, before any block
+    public ForkChoice(ChainIndex chainIndex, S rootScore) {
+        this.chainIndex = chainIndex;
+        this.scores = new HashMap<>();
+        this.tips = new HashSet<>();
+        this.scores.put(Block.FIRST_HASH, rootScore);
+        this.tips.add(Block.FIRST_HASH);
+        this.best = Block.FIRST_HASH;
+    }
+
+    //blocks have to be in chainIndex first; returns true if the block is the new head
+    public boolean add(String hash, S score) {
+        if (scores.containsKey(hash)) return false;
+
+        scores.put(hash, score);
+        tips.remove(chainIndex.getPrevious(hash));
+        tips.add(hash);
+        if (score.compareTo(scores.get(best)) <= 0) return false;
+
+        best = hash;
+        int lowest = chainIndex.getHeight(best) - MAX_TIP_DEPTH;
+        tips.removeIf(tip -> chainIndex.getHeight(tip) < lowest);
+        return true;
+    }
+
+    public S getScore(String hash) { return scores.get(hash); }
+
+    public String getBest() { return best; }
+
+    public int getTipCount() { return tips.size(); }
+}
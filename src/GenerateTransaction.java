@@ -1,7 +1,9 @@
 import java.lang.reflect.Array;
 import java.util.*;
 
+//makes up a few transfers from one random account with money, as demo traffic for the mempool
 public class GenerateTransaction {
+    private static final int MAX_FEE = 3;
     private HashMap<String, Integer> transactions;
 
     public GenerateTransaction(HashMap<String, Integer> transactions) {
@@ -35,7 +37,7 @@ public class GenerateTransaction {
             int index = 0;
             while (txIterator.hasNext() && index < transactionList.length) {
                 Map.Entry current = (Map.Entry) txIterator.next();
-                Transaction trx = new Transaction(nodeName, (String) current.getKey(), (int) (multiplier*nodeValue*(10.0f/100.0f)));
+                Transaction trx = new Transaction(UUID.randomUUID().toString(), nodeName, (String) current.getKey(), (int) (multiplier*nodeValue*(10.0f/100.0f)), random.nextInt(MAX_FEE + 1));
                 transactionList[index] = trx;
                 index++;
             }
@@ -0,0 +1,66 @@
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//peer selection and bookkeeping for epidemic spreading, shared by both node types
+//instead of sending to every node, a node passes something on to FANOUT random peers and each of them does the same the
+//first time they see it, so what one node sends stays the same however big the cluster gets and everything still
+//reaches every node in O(log N) hops
+//small messages (transactions, heartbeats) are pushed as they are and recognised by their guid when they come round again;
+//blocks are announced by hash (INV) and only fetched (GETDATA) by nodes that don't have them yet, so each node
+//downloads a block about once instead of once per peer that has it
+public class Gossip {
+    public static final String HASH = "hash";
+    //how long to wait for a requested block before asking another peer that announces it
+    private static final long REQUEST_TIMEOUT = 2000;
+    private static final int SEEN_MESSAGES = 100_000;
+    private final String[] peers;
+    private final int fanout;
+    private final Cache<UUID, Boolean> seenMessages;
+    private final Cache<String, Boolean> requestedBlocks;
+
+    public Gossip(String name, Collection<String> nodes, int fanout) {
+        List<String> others = new ArrayList<>(nodes);
+        others.remove(name);
+        this.peers = others.toArray(new String[0]);
+        this.fanout = fanout;
+        this.seenMessages = CacheBuilder.newBuilder().maximumSize(SEEN_MESSAGES).build();
+        this.requestedBlocks = CacheBuilder.newBuilder().expireAfterWrite(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS).build();
+    }
+
+    //up to fanout peers picked at random, never the one named except (where it came from, null for none)
+    public List<String> pickPeers(String except) {
+        String[] candidates = peers.clone();
+        List<String> picked = new ArrayList<>(fanout);
+        int remaining = candidates.length;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (remaining > 0 && picked.size() < fanout) {
+            int index = random.nextInt(remaining);
+            String candidate = candidates[index];
+            candidates[index] = candidates[--remaining];
+            if (!candidate.equals(except)) picked.add(candidate);
+        }
+        return picked;
+    }
+
+    //true the first time a message guid is seen, false for every copy after that
+    public boolean firstSeen(UUID guid) {
+        return seenMessages.asMap().putIfAbsent(guid, Boolean.TRUE) == null;
+    }
+
+    //true if the block should be requested now, false if it was already requested recently and may still arrive
+    public boolean startRequest(String hash) {
+        return requestedBlocks.asMap().putIfAbsent(hash, Boolean.TRUE) == null;
+    }
+
+    public void finishRequest(String hash) {
+        requestedBlocks.invalidate(hash);
+    }
+}
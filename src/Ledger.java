@@ -0,0 +1,191 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//account balances at every accepted block, without replaying the chain from genesis
+//each block keeps only its own balance changes; full snapshots are kept every SNAPSHOT_INTERVAL blocks of height,
+//plus one cached state for the block asked about last (normally the head, which moves forward one delta at a time)
+//so the head is O(1) and a fork parent is at most SNAPSHOT_INTERVAL deltas away from a snapshot
+//moving to a nearby branch (a reorg, or checking a block on a side branch) undoes the cached state's deltas back to where
+//the branches split and applies the other branch's, instead of starting again from a snapshot
+public class Ledger {
+    private static final int SNAPSHOT_INTERVAL = 64;
+
+    private final ChainIndex chainIndex;
+    private final HashMap<String, Entry> entries;
+    //the blocks each transaction id is in (on any branch), to catch a block repeating one already on its chain
+    private final HashMap<String, List<String>> blocksByTransaction;
+    private String cachedHash;
+    private HashMap<String, Integer> cachedState;
+
+    private static class Entry {
+        private final HashMap<String, Integer> delta;
+        private HashMap<String, Integer> snapshot;
+
+        private Entry(HashMap<String, Integer> delta) {
+            this.delta = delta;
+        }
+    }
+
+    //blocks have to be in chainIndex before they are added here
+    public Ledger(ChainIndex chainIndex) {
+        this.chainIndex = chainIndex;
+        this.entries = new HashMap<>();
+        this.blocksByTransaction = new HashMap<>();
+        this.cachedHash = Block.FIRST_HASH;
+        this.cachedState = new HashMap<>();
+    }
+
+    public boolean contains(String hash) {
+        return hash.equals(Block.FIRST_HASH) || entries.containsKey(hash);
+    }
+
+    //record a block's balance changes; credits are the coins the block creates (coinbase, stake rewards)
+    //returns false if the block is not indexed or its parent is not in the ledger
+    public boolean addBlock(String hash, Map<String, Integer> credits, Transaction[] transactions) {
+        if (entries.containsKey(hash)) return true;
+        String previous = chainIndex.getPrevious(hash);
+        if (previous == null || !contains(previous)) return false;
+
+        int height = chainIndex.getHeight(hash);
+        Entry entry = new Entry(computeDelta(credits, transactions));
+        entries.put(hash, entry);
+        for (Transaction curTxn : transactions) {
+            if (curTxn != null && curTxn.getId() != null) blocksByTransaction.computeIfAbsent(curTxn.getId(), id -> new ArrayList<>(1)).add(hash);
+        }
+
+        if (previous.equals(cachedHash)) {
+            applyDelta(cachedState, entry.delta);
+            cachedHash = hash;
+        }
+        if (height % SNAPSHOT_INTERVAL == 0) {
+            entry.snapshot = new HashMap<>(stateOf(hash));
+        }
+
+        return true;
+    }
+
+    //copy of the balances after the given block
+    public HashMap<String, Integer> getState(String hash) {
+        return new HashMap<>(stateOf(hash));
+    }
+
+    //whether the block can go on top of previous without anyone's balance dropping below zero
+    //credits are applied first, then the transactions in order, same as replaying the chain did
+    //a sender pays the amount plus the fee, the fees are already in the block creator's credits
+    public boolean canApply(String previous, Map<String, Integer> credits, Transaction[] transactions) {
+        if (!contains(previous)) return false;
+
+        return TransactionValidator.canApply(stateOf(previous), credits, transactions);
+    }
+
+    //the id of a transaction that is already in a block on the chain ending at previous, or twice in transactions,
+    //or null if there is none
+    public String findRepeated(String previous, Transaction[] transactions) {
+        return findRepeated(previous, transactions, Collections.emptySet());
+    }
+
+    //same, for a block on top of blocks that aren't in the ledger yet: previous is the last one that is and pendingIds
+    //the ids of the transactions in the ones after it
+    public String findRepeated(String previous, Transaction[] transactions, Set<String> pendingIds) {
+        HashSet<String> seen = new HashSet<>();
+
+        for (Transaction curTxn : transactions) {
+            if (curTxn == null || curTxn.getId() == null) continue;
+            String id = curTxn.getId();
+            if (!seen.add(id) || pendingIds.contains(id)) return id;
+
+            for (String curHash : blocksByTransaction.getOrDefault(id, Collections.emptyList())) {
+                if (chainIndex.isAncestor(curHash, previous)) return id;
+            }
+        }
+
+        return null;
+    }
+
+    //move state on to the balances after a block that isn't in the ledger (yet)
+    public static void applyBlock(HashMap<String, Integer> state, Map<String, Integer> credits, Transaction[] transactions) {
+        applyDelta(state, computeDelta(credits, transactions));
+    }
+
+    //balances after the given block; the returned map is shared, callers must not change it
+    private HashMap<String, Integer> stateOf(String hash) {
+        if (hash.equals(cachedHash)) return cachedState;
+
+        String fork = chainIndex.findCommonAncestor(cachedHash, hash);
+        int undo = chainIndex.getHeight(cachedHash) - chainIndex.getHeight(fork), redo = chainIndex.getHeight(hash) - chainIndex.getHeight(fork);
+        if (fork != null && undo > 0 && undo + redo <= SNAPSHOT_INTERVAL) {
+            HashMap<String, Integer> state = new HashMap<>(cachedState);
+            for (String curHash : chainIndex.getPath(fork, cachedHash)) undoDelta(state, entries.get(curHash).delta);
+            for (String curHash : chainIndex.getPath(fork, hash)) applyDelta(state, entries.get(curHash).delta);
+
+            cachedHash = hash;
+            cachedState = state;
+            return state;
+        }
+
+        //walk back to the closest block we already have a full state for
+        Deque<Entry> pending = new ArrayDeque<>();
+        String curHash = hash;
+        HashMap<String, Integer> base = null;
+
+        while (base == null) {
+            if (curHash.equals(cachedHash)) {
+                base = cachedState;
+            }
+            else if (curHash.equals(Block.FIRST_HASH)) {
+                base = new HashMap<>();
+            }
+            else {
+                Entry curEntry = entries.get(curHash);
+                if (curEntry.snapshot != null) {
+                    base = curEntry.snapshot;
+                }
+                else {
+                    pending.push(curEntry);
+                    curHash = chainIndex.getPrevious(curHash);
+                }
+            }
+        }
+
+        HashMap<String, Integer> state = new HashMap<>(base);
+        while (!pending.isEmpty()) {
+            applyDelta(state, pending.pop().delta);
+        }
+
+        cachedHash = hash;
+        cachedState = state;
+        return state;
+    }
+
+    private static HashMap<String, Integer> computeDelta(Map<String, Integer> credits, Transaction[] transactions) {
+        HashMap<String, Integer> delta = new HashMap<>(credits);
+
+        for (Transaction curTxn : transactions) {
+            if (curTxn != null) {
+                delta.merge(curTxn.getFrom(), -curTxn.getAmount() - curTxn.getFee(), Integer::sum);
+                delta.merge(curTxn.getTo(), curTxn.getAmount(), Integer::sum);
+            }
+        }
+
+        return delta;
+    }
+
+    private static void applyDelta(HashMap<String, Integer> state, HashMap<String, Integer> delta) {
+        for (Map.Entry<String, Integer> curChange : delta.entrySet()) {
+            state.merge(curChange.getKey(), curChange.getValue(), Integer::sum);
+        }
+    }
+
+    private static void undoDelta(HashMap<String, Integer> state, HashMap<String, Integer> delta) {
+        for (Map.Entry<String, Integer> curChange : delta.entrySet()) {
+            state.merge(curChange.getKey(), -curChange.getValue(), Integer::sum);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//in-memory network for running many nodes in one JVM
+//every message is encoded with BinaryCodec when it's sent and decoded again when it's delivered, so nodes never share objects
+//and the encoded size is what uses up bandwidth
+//each link (sender -> destination) sends one message at a time at bytesPerSecond, then the message takes latencyMs to arrive,
+//so messages on a link arrive in order; lossRate of them silently disappear
+//nodes in different partitions can't reach each other, sends between them fail like an unreachable TCP peer
+public class LoopbackNetwork {
+    private final ConcurrentHashMap<String, EventQueue> nodes;
+    private final ConcurrentHashMap<String, Integer> partitions;
+    private final ConcurrentHashMap<String, Long> linkBusyUntil;
+    private final ScheduledExecutorService deliveries;
+    private final AtomicLong sentCount, deliveredCount, droppedCount, failedCount, sentBytes;
+    private volatile long latencyMs, bytesPerSecond;
+    private volatile double lossRate;
+    private int nextPartition;
+
+    //bytesPerSecond 0 means links have unlimited bandwidth
+    public LoopbackNetwork(long latencyMs, long bytesPerSecond, double lossRate) {
+        this.nodes = new ConcurrentHashMap<>();
+        this.partitions = new ConcurrentHashMap<>();
+        this.linkBusyUntil = new ConcurrentHashMap<>();
+        this.deliveries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LoopbackNetwork");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sentCount = new AtomicLong();
+        this.deliveredCount = new AtomicLong();
+        this.droppedCount = new AtomicLong();
+        this.failedCount = new AtomicLong();
+        this.sentBytes = new AtomicLong();
+        this.latencyMs = latencyMs;
+        this.bytesPerSecond = bytesPerSecond;
+        this.lossRate = lossRate;
+        this.nextPartition = 1;
+    }
+
+    public void register(String name, EventQueue events) {
+        nodes.put(name, events);
+    }
+
+    public void send(Message message) {
+        EventQueue senderEvents = nodes.get(message.getSender());
+        EventQueue destEvents = nodes.get(message.getDestination());
+        sentCount.incrementAndGet();
+
+        if (destEvents == null || !partitionOf(message.getSender()).equals(partitionOf(message.getDestination()))) {
+            failedCount.incrementAndGet();
+            if (senderEvents != null) senderEvents.post(EventQueue.SEND_FAILED, message);
+            return;
+        }
+
+        if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+
+        //same as a real connection: a message that can't be encoded fails on its own instead of taking the sender down
+        byte[] encoded;
+        try {
+            encoded = BinaryCodec.encodeMessage(message);
+        } catch (RuntimeException e) {
+            failedCount.incrementAndGet();
+            if (senderEvents != null) senderEvents.post(EventQueue.SEND_FAILED, message);
+            return;
+        }
+        sentBytes.addAndGet(encoded.length);
+
+        long now = System.nanoTime();
+        long sendTime = bytesPerSecond > 0 ? encoded.length * 1_000_000_000L / bytesPerSecond : 0;
+        String link = message.getSender() + "->" + message.getDestination();
+        long sentAt = linkBusyUntil.merge(link, now + sendTime, (busyUntil, unused) -> Math.max(busyUntil, now) + sendTime);
+        long delay = sentAt - now + TimeUnit.MILLISECONDS.toNanos(latencyMs);
+
+        deliveries.schedule(() -> deliver(destEvents, encoded), delay, TimeUnit.NANOSECONDS);
+    }
+
+    //nodes in group can only reach each other until heal() is called
+    public synchronized void partition(Collection<String> group) {
+        int partition = nextPartition++;
+        for (String curNode : group) partitions.put(curNode, partition);
+    }
+
+    public synchronized void heal() {
+        partitions.clear();
+    }
+
+    public void setLatencyMs(long latencyMs) { this.latencyMs = latencyMs; }
+    public void setBytesPerSecond(long bytesPerSecond) { this.bytesPerSecond = bytesPerSecond; }
+    public void setLossRate(double lossRate) { this.lossRate = lossRate; }
+
+    public int getNodeCount() { return nodes.size(); }
+    public long getSentCount() { return sentCount.get(); }
+    public long getDeliveredCount() { return deliveredCount.get(); }
+    //lost to lossRate or to a full event queue at the destination
+    public long getDroppedCount() { return droppedCount.get(); }
+    //unknown destination or partitioned away
+    public long getFailedCount() { return failedCount.get(); }
+    public long getSentBytes() { return sentBytes.get(); }
+
+    public void shutdown() {
+        deliveries.shutdownNow();
+    }
+
+    private void deliver(EventQueue destEvents, byte[] encoded) {
+        //a node that is too far behind loses messages instead of stalling the whole network
+        if (destEvents.offerMessage(BinaryCodec.readMessage(ByteBuffer.wrap(encoded)))) {
+            deliveredCount.incrementAndGet();
+        }
+        else {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private Integer partitionOf(String name) {
+        return partitions.getOrDefault(name, 0);
+    }
+}
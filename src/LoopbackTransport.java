@@ -0,0 +1,21 @@
+//a node's connection to a LoopbackNetwork, everything else happens in the network
+public class LoopbackTransport implements Transport {
+    private final LoopbackNetwork network;
+
+    public LoopbackTransport(LoopbackNetwork network) {
+        this.network = network;
+    }
+
+    public void attach(String name, EventQueue events) {
+        network.register(name, events);
+    }
+
+    public void start() {
+    }
+
+    public void send(Message message) {
+        network.send(message);
+    }
+
+    public int getConnectionCount() { return network.getNodeCount() - 1; }
+}
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+//transactions waiting to go into a block, shared by both node types
+//transactions are kept by id, so the same one submitted twice (or flooded back by another node) is only kept once;
+//they are also kept in priority order (highest fee first, then oldest first) so a block takes the best ones without sorting
+//every transaction is checked against the balances at the head when it's submitted, but a sender can still submit more
+//than they have in total, so the final check is when a block is put together
+//anything older than maxAgeMs is dropped, and when there are more than maxSize the lowest priority ones are dropped
+//safe to use from several threads, e.g. the node loop and whoever submits transactions; the confirmed check and both
+//indexes only change together under lock, so a transaction can't come back while its block is being added
+public class Mempool {
+    public static final String ACCEPTED = "ACCEPTED", DUPLICATE = "DUPLICATE", INVALID = "INVALID", FULL = "FULL";
+    private final int maxSize;
+    private final long maxAgeMs;
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final ConcurrentSkipListSet<Entry> byPriority;
+    //ids that made it into a block, so they can't be submitted again until they are too old to be anyway
+    private final ConcurrentHashMap<String, Long> confirmed;
+    private final AtomicLong nextSequence;
+    private volatile Map<String, Integer> headState;
+    private final Object lock = new Object();
+
+    private static class Entry implements Comparable<Entry> {
+        private final Transaction transaction;
+        private final long arrival, sequence;
+
+        private Entry(Transaction transaction, long arrival, long sequence) {
+            this.transaction = transaction;
+            this.arrival = arrival;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Entry other) {
+            if (transaction.getFee() != other.transaction.getFee()) return Integer.compare(other.transaction.getFee(), transaction.getFee());
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    public Mempool(int maxSize, long maxAgeMs) {
+        this.maxSize = maxSize;
+        this.maxAgeMs = maxAgeMs;
+        this.entries = new ConcurrentHashMap<>();
+        this.byPriority = new ConcurrentSkipListSet<>();
+        this.confirmed = new ConcurrentHashMap<>();
+        this.nextSequence = new AtomicLong();
+        this.headState = new HashMap<>();
+    }
+
+    //balances after the current head, the caller must not change the map afterwards
+    public void setHeadState(Map<String, Integer> headState) {
+        this.headState = headState;
+    }
+
+    //returns ACCEPTED, DUPLICATE if the id is already waiting or in a block, INVALID if the transaction is malformed or the
+    //sender can't pay for it at the head, or FULL if the pool is full of transactions with a higher priority
+    public String submit(Transaction transaction) {
+        if (transaction == null || transaction.getId() == null || transaction.getFrom() == null || transaction.getTo() == null
+                || transaction.getAmount() <= 0 || !transaction.hasValidCost() || !transaction.hasValidText()) return INVALID;
+        if (headState.getOrDefault(transaction.getFrom(), 0) < transaction.getCost()) return INVALID;
+
+        synchronized (lock) {
+            if (confirmed.containsKey(transaction.getId())) return DUPLICATE;
+
+            Entry entry = new Entry(transaction, System.currentTimeMillis(), nextSequence.getAndIncrement());
+            if (entries.putIfAbsent(transaction.getId(), entry) != null) return DUPLICATE;
+            byPriority.add(entry);
+
+            while (entries.size() > maxSize) {
+                Entry lowest = byPriority.pollLast();
+                if (lowest == null) break;
+                entries.remove(lowest.transaction.getId(), lowest);
+                if (lowest == entry) return FULL;
+            }
+            return ACCEPTED;
+        }
+    }
+
+    //the highest priority transactions that can all go on top of a block with the given balances, at most limit of them
+    //transactions the senders can't pay for now are skipped and stay for a later block
+    //(unless the sender couldn't even pay for that one alone at the head, then it's dropped)
+    public Transaction[] select(Map<String, Integer> state, int limit) {
+        return select(state, limit, Collections.emptySet());
+    }
+
+    //same, for a block that goes on top of blocks that aren't in the chain yet: state is the balances after them and
+    //exclude the ids of the transactions they already have, which are still waiting here until those blocks are added
+    public Transaction[] select(Map<String, Integer> state, int limit, Set<String> exclude) {
+        evictExpired();
+
+        ArrayList<Transaction> selected = new ArrayList<>();
+        HashMap<String, Integer> touched = new HashMap<>();
+        Iterator<Entry> candidates = byPriority.iterator();
+
+        while (candidates.hasNext() && selected.size() < limit) {
+            Entry curEntry = candidates.next();
+            Transaction curTxn = curEntry.transaction;
+            String from = curTxn.getFrom(), to = curTxn.getTo();
+            long cost = curTxn.getCost();
+            if (exclude.contains(curTxn.getId())) continue;
+
+            if (state.getOrDefault(from, 0) < cost) {
+                if (headState.getOrDefault(from, 0) < cost) remove(curEntry);
+                continue;
+            }
+
+            int fromBalance = touched.getOrDefault(from, state.getOrDefault(from, 0));
+            if (fromBalance < cost) continue;
+
+            touched.put(from, (int) (fromBalance - cost));
+            touched.put(to, touched.getOrDefault(to, state.getOrDefault(to, 0)) + curTxn.getAmount());
+            selected.add(curTxn);
+        }
+
+        return selected.toArray(new Transaction[0]);
+    }
+
+    //forget transactions that are now in a block
+    public void removeIncluded(Transaction[] transactions) {
+        if (transactions == null) return;
+
+        long now = System.currentTimeMillis();
+        for (Transaction curTxn : transactions) {
+            if (curTxn != null && curTxn.getId() != null) {
+                synchronized (lock) {
+                    confirmed.put(curTxn.getId(), now);
+                    Entry entry = entries.get(curTxn.getId());
+                    if (entry != null) remove(entry);
+                }
+            }
+        }
+    }
+
+    //take back transactions from blocks that are no longer on the head's chain after a reorg, so they get mined again
+    //call after setHeadState with the new head; ones that are also on the new branch are removed again by removeIncluded
+    public void returnDisconnected(Transaction[] transactions) {
+        if (transactions == null) return;
+
+        for (Transaction curTxn : transactions) {
+            if (curTxn != null && curTxn.getId() != null && confirmed.remove(curTxn.getId()) != null) submit(curTxn);
+        }
+    }
+
+    public boolean contains(String id) { return entries.containsKey(id); }
+
+    public int size() { return entries.size(); }
+
+    private void evictExpired() {
+        long oldest = System.currentTimeMillis() - maxAgeMs;
+
+        for (Entry curEntry : entries.values()) {
+            if (curEntry.arrival < oldest) remove(curEntry);
+        }
+        confirmed.values().removeIf(confirmedAt -> confirmedAt < oldest);
+    }
+
+    private void remove(Entry entry) {
+        synchronized (lock) {
+            if (entries.remove(entry.transaction.getId(), entry)) byPriority.remove(entry);
+        }
+    }
+}
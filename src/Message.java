@@ -2,13 +2,23 @@ import java.util.UUID;
 
 public class Message {
     public static final String REPLY_TYPE = "REPLY", BLOCK_TYPE = "BLOCK", TEST_TYPE = "TEST", REQ_VOTE_TYPE = "REQ_VOTE", HEARTBEAT_TYPE = "HEARTBEAT",
-        BLOCK_VERIFY_TYPE = "BLOCK_VERIFY", PUBLIC_KEY_TYPE = "PUBLIC_KEY";
+        BLOCK_VERIFY_TYPE = "BLOCK_VERIFY", PUBLIC_KEY_TYPE = "PUBLIC_KEY", TRANSACTION_TYPE = "TRANSACTION",
+        INV_TYPE = "INV", GET_DATA_TYPE = "GETDATA", GET_HEADERS_TYPE = "GETHEADERS", HEADERS_TYPE = "HEADERS";
     private String type, payload;
     private String sender, destination;
     private UUID guid;
+    //blocks travel as objects next to the JSON payload, so they're encoded once instead of as JSON escaped inside JSON
+    private Block block;
+    private StakeBlock stakeBlock;
+    private BlockMeta blockMeta;
 
     public Message(String sender, String destination, String type, String payload) {
-        this.guid = UUID.randomUUID();
+        this(UUID.randomUUID(), sender, destination, type, payload);
+    }
+
+    //for decoding a message that already has an id
+    public Message(UUID guid, String sender, String destination, String type, String payload) {
+        this.guid = guid;
         this.sender = sender;
         this.destination = destination;
         this.type = type;
@@ -20,4 +30,11 @@ public class Message {
     public String getDestination() { return destination; }
     public String getType() { return type; }
     public String getPayload() { return payload; }
+    public Block getBlock() { return block; }
+    public StakeBlock getStakeBlock() { return stakeBlock; }
+    public BlockMeta getBlockMeta() { return blockMeta; }
+
+    public void setBlock(Block block) { this.block = block; }
+    public void setStakeBlock(StakeBlock stakeBlock) { this.stakeBlock = stakeBlock; }
+    public void setBlockMeta(BlockMeta blockMeta) { this.blockMeta = blockMeta; }
 }
@@ -1,55 +1,93 @@
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.net.Socket;
-import java.util.HashMap;
-
-public class MessageHolder extends Thread{
-    public static final String WAIT = "WAIT", READY = "READY";
-    private Socket socket;
-    private volatile String messageState;
-    private volatile Message message;
-
-    public MessageHolder(Socket socket) {
-        this.socket = socket;
-        this.messageState = WAIT;
-    }
+import com.google.gson.JsonSyntaxException;
 
-    public void run() {
-        System.out.println(Colors.ANSI_PURPLE + "* Another node connected..." + Colors.ANSI_RESET);
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 
-        try {
-            BufferedReader socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+//decode state for one inbound connection
+//the stream is a sequence of frames, each one a 4 byte big-endian length followed by that many bytes of message
+//a frame is either BinaryCodec's binary message or, when a node runs with -DjsonWire=true for debugging, the message's JSON
+//bytes can arrive split anywhere, so a partial length or body is kept here until the rest of it is read;
+//a frame that arrived whole is decoded straight out of the read buffer
+public class MessageHolder {
+    //the biggest message is a full block; a transaction with the longest id and names (plain ASCII, so one byte a character
+    //however many times it's escaped, see Transaction.hasValidText) takes well under MAX_TRANSACTION_BYTES even as JSON,
+    //the rest of the block, its signatures and the message around it fit in the overhead
+    //so a peer can't make us allocate much more than the largest block that can actually occur
+    private static final int MAX_TRANSACTION_BYTES = 1024, MAX_OVERHEAD_BYTES = 1024 * 1024;
+    public static final int MAX_FRAME_SIZE = MAX_OVERHEAD_BYTES + NodeRunner.MAX_BLOCK_TRANSACTIONS * MAX_TRANSACTION_BYTES;
+    private static final Gson gson = new Gson();
+    private final ByteBuffer lengthBuffer;
+    private ByteBuffer frameBuffer;
+    private final ArrayDeque<Message> messages;
 
-            String msg = socketIn.readLine();
-            String messageJson = null;
+    public MessageHolder() {
+        this.lengthBuffer = ByteBuffer.allocate(4);
+        this.frameBuffer = null;
+        this.messages = new ArrayDeque<>();
+    }
 
-            while (msg != null && msg.length() > 0) {
-                if (messageJson == null) messageJson = msg;
-                else messageJson += msg;
+    //consume everything in the buffer, returns false if the stream isn't valid and the connection should be dropped
+    public boolean decode(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            if (frameBuffer == null) {
+                copy(in, lengthBuffer);
+                if (lengthBuffer.hasRemaining()) return true;
 
-                msg = socketIn.readLine();
-            }
+                int length = lengthBuffer.getInt(0);
+                lengthBuffer.clear();
+                if (length <= 0 || length > MAX_FRAME_SIZE) return false;
 
-            socketIn.close();
-            socket.close();
+                if (in.remaining() >= length) {
+                    ByteBuffer frame = in.slice();
+                    frame.limit(length);
+                    in.position(in.position() + length);
+                    if (!decodeFrame(frame)) return false;
+                    continue;
+                }
+                frameBuffer = ByteBuffer.allocate(length);
+            }
 
-            Gson gson = new Gson();
-            this.message = gson.fromJson(messageJson, Message.class);
-            this.messageState = READY;
-            System.out.println(Colors.ANSI_PURPLE + "MessageHolder (" + Thread.currentThread().getName() + "): Ready with " + message.getType() + " message [" + message.getGuid() + "] from " + message.getSender() + " waiting to deliver..." + Colors.ANSI_RESET);
-        } catch (IOException e) {
-            System.out.println(Colors.ANSI_RED + "WARNING MessagePasser (" + Thread.currentThread().getName() + "): Communication failed" + Colors.ANSI_RESET);
-            //e.printStackTrace();
+            copy(in, frameBuffer);
+            if (!frameBuffer.hasRemaining()) {
+                frameBuffer.flip();
+                if (!decodeFrame(frameBuffer)) return false;
+                frameBuffer = null;
+            }
         }
+        return true;
     }
 
-    public String getMessageState() { return messageState; }
+    //next fully decoded message, or null if there are none
+    public Message nextMessage() { return messages.poll(); }
+
+    private boolean decodeFrame(ByteBuffer frame) {
+        Message message;
+        try {
+            if (frame.get(frame.position()) == '{') {
+                byte[] messageJson = new byte[frame.remaining()];
+                frame.get(messageJson);
+                message = gson.fromJson(new String(messageJson, StandardCharsets.UTF_8), Message.class);
+            }
+            else {
+                message = BinaryCodec.readMessage(frame);
+            }
+        } catch (JsonSyntaxException | IllegalArgumentException | BufferUnderflowException e) {
+            return false;
+        }
 
-    public Message getMessage() { return message; }
+        if (message == null) return false;
+        messages.add(message);
+        return true;
+    }
+
+    private static void copy(ByteBuffer from, ByteBuffer to) {
+        int count = Math.min(from.remaining(), to.remaining());
+        ByteBuffer slice = from.slice();
+        slice.limit(count);
+        to.put(slice);
+        from.position(from.position() + count);
+    }
 }
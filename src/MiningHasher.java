@@ -0,0 +1,71 @@
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+//SHA-256 over (fixed prefix + decimal nonce) for the mining loop
+//the prefix is fed to a digest once in the constructor; each attempt clones that midstate and only adds the nonce digits
+//cloning the JDK digest keeps its SHA intrinsics, which is several times faster than hashing in plain Java;
+//the clone (about 200 bytes, short-lived) is the only allocation per attempt
+//one hasher per thread, it reuses its digit and digest buffers between calls
+public class MiningHasher {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    //a long is at most 20 characters ("-9223372036854775808")
+    private static final int MAX_NONCE_DIGITS = 20;
+
+    private final MessageDigest midstate;
+    private final byte[] digits = new byte[MAX_NONCE_DIGITS];
+    private final byte[] digest = new byte[32];
+
+    public MiningHasher(String prefix) {
+        this(prefix.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public MiningHasher(byte[] prefix) {
+        try {
+            this.midstate = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        this.midstate.update(prefix);
+    }
+
+    //returns the digest of prefix + Long.toString(nonce); the array is reused by the next call
+    public byte[] hash(long nonce) {
+        int digitCount = writeDigits(nonce);
+
+        try {
+            MessageDigest attempt = (MessageDigest) midstate.clone();
+            attempt.update(digits, MAX_NONCE_DIGITS - digitCount, digitCount);
+            attempt.digest(digest, 0, digest.length);
+        } catch (CloneNotSupportedException | DigestException e) {
+            throw new IllegalStateException("SHA-256 midstate could not be reused", e);
+        }
+        return digest;
+    }
+
+    //writes the decimal form of value right-aligned in digits[] and returns how many bytes it used
+    private int writeDigits(long value) {
+        int pos = MAX_NONCE_DIGITS;
+        boolean negative = value < 0;
+        //work with negative numbers so Long.MIN_VALUE does not overflow
+        long remaining = negative ? value : -value;
+
+        do {
+            digits[--pos] = (byte) ('0' - (remaining % 10));
+            remaining /= 10;
+        } while (remaining != 0);
+
+        if (negative) digits[--pos] = '-';
+        return MAX_NONCE_DIGITS - pos;
+    }
+
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >>> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -1,11 +1,13 @@
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
 
 import javax.crypto.NoSuchPaddingException;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
@@ -16,33 +18,81 @@ public class Node implements NodeInter {
     private boolean testing = false;
     private String name;
     private HashMap<String, Block> blockChain;
+    private ChainIndex chainIndex;
+    private ForkChoice<BigInteger> forkChoice;
+    private Ledger ledger;
     private HashMap<String, StakeBlock> stakeBlockChain;
     private HashMap<String, RemoteNode> remoteNodes;
     private Block longestChainHead;
-    private Server server;
+    private EventQueue events;
+    private Transport transport;
     private HashMap<UUID, Message> awaitingReplies;
-    private ArrayList<Client> openClients;
     private BlockMiner blockMiner;
+    private BlockStore blockStore;
+    private Mempool mempool;
+    private NodeApi api;
+    private Gossip gossip;
+    //blocks that arrived before their previous block
+    private OrphanPool<Block> orphans;
+    private ChainSync sync;
+    private int apiPort;
+    private Gson gson;
 
     public Node(String name, int port, HashMap<String, RemoteNode> remoteNodes) {
+        this(name, remoteNodes, new TcpTransport(port, remoteNodes), "Node_" + name + "_blockStore");
+        if (NodeRunner.API_PORT_OFFSET >= 0) this.apiPort = port + NodeRunner.API_PORT_OFFSET;
+    }
+
+    //storeDirectory null keeps the chain in memory only
+    public Node(String name, HashMap<String, RemoteNode> remoteNodes, Transport transport, String storeDirectory) {
         this.name = name;
         this.blockChain = new HashMap<>();
+        this.chainIndex = new ChainIndex();
+        this.forkChoice = new ForkChoice<>(chainIndex, BigInteger.ZERO);
+        this.ledger = new Ledger(chainIndex);
         this.stakeBlockChain = new HashMap<>();
         this.longestChainHead = null;
         this.remoteNodes = remoteNodes;
         this.awaitingReplies = new HashMap<>();
-        this.openClients = new ArrayList<>();
-        this.server = new Server(port);
+        this.mempool = new Mempool(NodeRunner.MEMPOOL_SIZE, NodeRunner.MEMPOOL_MAX_AGE);
+        this.api = new NodeApi(this);
+        this.gossip = new Gossip(name, remoteNodes.keySet(), NodeRunner.GOSSIP_FANOUT);
+        this.orphans = new OrphanPool<>(ChainSync.ORPHAN_POOL_SIZE, ChainSync.ORPHAN_MAX_AGE);
+        this.sync = new ChainSync();
+        this.apiPort = -1;
+        this.gson = new Gson();
+        this.events = new EventQueue();
+        this.transport = transport;
+        this.transport.attach(name, events);
+
+        if (storeDirectory != null) {
+            try {
+                this.blockStore = new BlockStore(storeDirectory, NodeRunner.FSYNC_POLICY);
+            } catch (IOException e) {
+                //running on without the blocks already saved would quietly throw them away, so don't start at all
+                System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Could not open block store " + storeDirectory + ", not starting" + Colors.ANSI_RESET);
+                throw new IllegalStateException("could not open block store " + storeDirectory, e);
+            }
+        }
+        loadFromStore();
     }
 
+    public int getHeadNumber() { return longestChainHead == null ? 0 : longestChainHead.getNumber(); }
+
+    public String getHeadHash() { return longestChainHead == null ? Block.FIRST_HASH : longestChainHead.getHash(); }
+
     public void startServer() {
-        this.server.start();
+        this.transport.start();
+        if (apiPort >= 0) this.api.start(apiPort);
     }
 
     public void run() {
-        MessageHolder nextHolder;
         long lastTest = System.nanoTime();
-        this.blockMiner = new BlockMiner();
+        this.blockMiner = new BlockMiner(events);
+
+        //catch up with whatever the others mined while this node was away
+        List<String> syncPeers = gossip.pickPeers(null);
+        for (String remote : syncPeers.subList(0, Math.min(ChainSync.START_PEERS, syncPeers.size()))) requestHeaders(remote, null);
 
         while (true) {
             //if not already mining a block, make a new one and start mining
@@ -51,14 +101,18 @@ public class Node implements NodeInter {
 
                 if (longestChainHead == null) {
                     newBlock = new Block(1, this.name, Block.FIRST_HASH);
+                    newBlock.setTarget(Difficulty.nextTarget(null, blockChain));
+                    newBlock.setTimestamp(Difficulty.nextTimestamp(null));
                 } else {
                     newBlock = new Block(this.longestChainHead.getNumber() + 1, this.name, this.longestChainHead.getHash());
+                    newBlock.setTarget(Difficulty.nextTarget(longestChainHead, blockChain));
+                    newBlock.setTimestamp(Difficulty.nextTimestamp(longestChainHead));
                     HashMap<String, Integer> chainState = computeChainState(longestChainHead);
                     System.out.println("    Starting state of next block " + newBlock.getNumber() + ": " + chainState.toString());
-                    GenerateTransaction transactionGenerator = new GenerateTransaction(chainState);
-                    Transaction[] newTrans = transactionGenerator.generateTransaction();
+                    submitGeneratedTransactions(chainState);
+                    Transaction[] newTrans = mempool.select(chainState, NodeRunner.MAX_BLOCK_TRANSACTIONS);
                     newBlock.setTransactions(newTrans);
-                    System.out.println("    Transactions for next block " + newBlock.getNumber() + ": " + Arrays.toString(newTrans));
+                    System.out.println("    " + newTrans.length + " transactions for next block " + newBlock.getNumber() + ", " + mempool.size() + " waiting in the mempool");
                 }
 
                 System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Generated block " + newBlock.getNumber() + " with previous block ..." + newBlock.getPrevious().substring(57) + Colors.ANSI_RESET);
@@ -69,159 +123,167 @@ public class Node implements NodeInter {
             if (testing && ((System.nanoTime() - lastTest) / 1000000) >= 5000) { //run test code every 5 seconds if in testing mode
                 doTests();
                 lastTest = System.nanoTime();
-                System.out.println(">>>>" + server.getMessageHolderCount() + " message holders, " + openClients.size() + " open clients" + "<<<<");
+                System.out.println(">>>>" + transport.getConnectionCount() + " connections, " + events.size() + " queued events" + "<<<<");
             }
 
-            nextHolder = server.getNextReadyHolder();
-            while (nextHolder != null) {
-                deliverMessage(nextHolder.getMessage());
-                nextHolder = server.getNextReadyHolder();
+            //sleep until something happens; in testing mode also wake up for the next round of test messages
+            long timeout = testing ? Math.max(1, 5000 - (System.nanoTime() - lastTest) / 1000000) : -1;
+            if (sync.isActive()) timeout = timeout < 0 ? ChainSync.TICK : Math.min(timeout, ChainSync.TICK);
+            EventQueue.Event event;
+            try {
+                event = events.take(timeout);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
             }
+            if (event != null) handleEvent(event);
+            if (sync.isActive()) sendBlockRequests();
+        }
+    }
 
-            if (blockMiner.getBlockState().equals(BlockMiner.READY)) {
+    private void handleEvent(EventQueue.Event event) {
+        if (event.getType().equals(EventQueue.MESSAGE)) {
+            deliverMessage((Message) event.getPayload());
+        }
+        else if (event.getType().equals(EventQueue.BLOCK_MINED)) {
+            //a miner that was replaced after it finished can still post, only the current one's block counts
+            if (event.getPayload() == blockMiner.getBlock() && blockMiner.getBlockState().equals(BlockMiner.READY)) {
                 Block myNewBlock = blockMiner.getBlock();
-                addBlock(myNewBlock);
-                try {
-                    writeToDisk();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                broadcastBlock(myNewBlock);
-                blockMiner = new BlockMiner();
+                if (addBlock(myNewBlock)) announceBlock(myNewBlock, null);
+                blockMiner = new BlockMiner(events);
             }
-
-            cleanClients();
+        }
+        else if (event.getType().equals(EventQueue.SEND_FAILED)) {
+            cleanUpFailedMessage((Message) event.getPayload());
         }
     }
 
-    private void addBlock(Block block) {
+    //returns true if the block was valid
+    private boolean addBlock(Block block) {
         if (verifyBlock(block)) {
             System.out.println(Colors.ANSI_YELLOW + "Node (" + Thread.currentThread().getName() + "): Adding new block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] with previous block ..." + block.getPrevious().substring(57) + Colors.ANSI_RESET);
             this.blockChain.put(block.getHash(), block);
+            this.api.addBlock(block.getHash(), block);
+            this.chainIndex.add(block.getHash(), block.getPrevious());
+            this.ledger.addBlock(block.getHash(), block.getCredits(), block.getTransactions());
+            saveBlock(block);
 
-            if (this.longestChainHead == null || block.getNumber() > this.longestChainHead.getNumber()) {
+            if (this.forkChoice.add(block.getHash(), chainWork(block))) {
                 System.out.println(Colors.ANSI_YELLOW + "Node (" + Thread.currentThread().getName() + "): Updated head of my longest chain to block " + block.getNumber() + " [..." + block.getHash().substring(57) + "]" + Colors.ANSI_RESET);
+                String oldHead = getHeadHash();
                 this.longestChainHead = block;
+                headChanged(oldHead);
                 blockMiner.interrupt();
-                blockMiner = new BlockMiner();
+                blockMiner = new BlockMiner(events);
             }
+            return true;
         }
         else {
             System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): New block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] with previous block ..." + block.getPrevious().substring(57) + " was not valid; rejecting!" + Colors.ANSI_RESET);
+            return false;
         }
     }
 
+    //work behind the chain ending at block, the parent has to be in forkChoice already
+    private BigInteger chainWork(Block block) {
+        return forkChoice.getScore(block.getPrevious()).add(Difficulty.getWork(block.getTarget()));
+    }
+
     private HashMap<String, Integer> computeChainState(Block lastBlock) {
-        Stack<Block> totalChain = findChain(lastBlock);
         HashMap<String, Integer> chainState = new HashMap<>();
 
         for (String curPerson : remoteNodes.keySet()) chainState.put(curPerson, 0);
+        chainState.putAll(ledger.getState(lastBlock.getHash()));
 
-        while (!totalChain.empty()) {
-            Block curBlock = totalChain.pop();
-
-            String miner = curBlock.getCoinbase().getPerson();
-            if (!chainState.containsKey(miner)) {
-                chainState.put(miner, 0);
-            }
-            chainState.put(miner, chainState.get(miner) + curBlock.getCoinbase().getAmount());
-
-            for (Transaction curTxn : curBlock.getTransactions()) {
-                if (curTxn != null) {
-                    String from = curTxn.getFrom(), to = curTxn.getTo();
+        return chainState;
+    }
 
-                    if (!chainState.containsKey(from)) {
-                        chainState.put(from, 0);
-                    }
-                    if (!chainState.containsKey(to)) {
-                        chainState.put(to, 0);
-                    }
+    private boolean verifyBlock(Block block) {
+        if (block.getTransactions() == null || block.getTransactions().length > NodeRunner.MAX_BLOCK_TRANSACTIONS) {
+            System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Block " + block.getNumber() + " has no transaction list or more than " + NodeRunner.MAX_BLOCK_TRANSACTIONS + " transactions" + Colors.ANSI_RESET);
+            return false;
+        }
 
-                    chainState.put(from, chainState.get(from) - curTxn.getAmount());
-                    chainState.put(to, chainState.get(to) + curTxn.getAmount());
-                }
-            }
+        if (!block.hasValidProofOfWork()) {
+            System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Block " + block.getNumber() + " does not meet its proof of work target" + Colors.ANSI_RESET);
+            return false;
         }
 
-        return chainState;
-    }
+        if (!ledger.contains(block.getPrevious())) {
+            System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Block " + block.getNumber() + " has unknown previous block ..." + block.getPrevious().substring(57) + Colors.ANSI_RESET);
+            return false;
+        }
 
-    private boolean verifyBlock(Block block) {
-        Stack<Block> totalChain = findChain(block);
-        boolean isValid = true;
-        HashMap<String, Integer> chainState = new HashMap<>();
+        Block parent = blockChain.get(block.getPrevious());
+        String timestampProblem = Difficulty.checkTimestamp(block, parent);
+        if (timestampProblem != null) {
+            System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Block " + block.getNumber() + " with timestamp " + block.getTimestamp() + " " + timestampProblem + Colors.ANSI_RESET);
+            return false;
+        }
 
-        while (!totalChain.isEmpty() && isValid) {
-            Block curBlock = totalChain.pop();
+        String expectedTarget = Difficulty.nextTarget(parent, blockChain);
+        if (!block.getTarget().equals(expectedTarget)) {
+            System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Block " + block.getNumber() + " has target " + block.getTarget() + " but expected " + expectedTarget + Colors.ANSI_RESET);
+            return false;
+        }
 
-            String miner = curBlock.getCoinbase().getPerson();
-            if (!chainState.containsKey(miner)) {
-                chainState.put(miner, 0);
-            }
-            chainState.put(miner, chainState.get(miner) + curBlock.getCoinbase().getAmount());
-
-            for (Transaction curTxn : curBlock.getTransactions()) {
-                if (curTxn != null) {
-                    String from = curTxn.getFrom(), to = curTxn.getTo();
-
-                    if (!chainState.containsKey(from)) {
-                        chainState.put(from, 0);
-                    }
-                    if (!chainState.containsKey(to)) {
-                        chainState.put(to, 0);
-                    }
-
-                    chainState.put(from, chainState.get(from) - curTxn.getAmount());
-                    //This means that someone was "DOUBLE SPENDING" and ran out of money, so it's not a valid block
-                    if (chainState.get(from) < 0) isValid = false;
-                    chainState.put(to, chainState.get(to) + curTxn.getAmount());
-                }
-            }
+        String repeated = ledger.findRepeated(block.getPrevious(), block.getTransactions());
+        if (repeated != null) {
+            System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Block " + block.getNumber() + " repeats transaction " + repeated + " that is already in the chain" + Colors.ANSI_RESET);
+            return false;
         }
 
-        return isValid;
+        //everything before the previous block was checked when it was added, so only this block's transactions need checking
+        return ledger.canApply(block.getPrevious(), block.getCredits(), block.getTransactions());
     }
 
-    private Stack<Block> findChain(Block startBlock) {
-        Stack<Block> chain = new Stack<>();
-        chain.push(startBlock);
-        return findChain(chain);
+    private void sendMessage(String dest, Message message, boolean waitForReply) {
+        if (waitForReply) { this.awaitingReplies.put(message.getGuid(), message); }
+
+        this.transport.send(message);
     }
 
-    private Stack<Block> findChain(Stack<Block> chain) {
-        Block lastBlock = chain.peek();
-        String hashForPrevious = lastBlock.getPrevious();
+    //tell a few random peers we have the block, the ones that don't have it yet will ask for it
+    private void announceBlock(Block block, String except) {
+        JsonObject invJson = new JsonObject();
+        invJson.addProperty(Gossip.HASH, block.getHash());
 
-        if (hashForPrevious.equals(Block.FIRST_HASH)) {
-            return chain;
-        }
-        else {
-            chain.push(blockChain.get(hashForPrevious));
-            return findChain(chain);
+        for (String remote : gossip.pickPeers(except)) {
+            Message invMessage = new Message(this.name, remote, Message.INV_TYPE, invJson.toString());
+            System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Announcing block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] to node " + remote + Colors.ANSI_RESET);
+            sendMessage(remote, invMessage, false);
         }
     }
 
-    private void sendMessage(String dest, Message message, boolean waitForReply) {
-        if (waitForReply) { this.awaitingReplies.put(message.getGuid(), message); }
+    private void requestBlock(String hash, String remote) {
+        if (!gossip.startRequest(hash)) return;
 
-        Client client = new Client(this.remoteNodes.get(dest).getAddress(), this.remoteNodes.get(dest).getPort(), message);
-        client.start();
-        this.openClients.add(client);
+        sendGetData(remote, Collections.singletonList(hash));
     }
 
-    private void broadcastBlock(Block block) {
-        Gson gson = new Gson();
-        String blockJson = gson.toJson(block);
+    private void sendGetData(String remote, List<String> hashes) {
+        JsonObject getDataJson = new JsonObject();
+        getDataJson.add(ChainSync.HASHES, gson.toJsonTree(hashes));
+        sendMessage(remote, new Message(this.name, remote, Message.GET_DATA_TYPE, getDataJson.toString()), false);
+    }
 
-        for (String remote : remoteNodes.keySet()) {
-            if (!remote.equals(this.name)) {
-                Message blockMessage = new Message(this.name, remote, Message.BLOCK_TYPE, blockJson);
+    //ask a peer which blocks on its chain come after the last one we have in common; after is the last hash of a
+    //previous reply from that peer when we're asking for the next part of a long chain
+    private void requestHeaders(String remote, String after) {
+        if (!sync.startHeaderRequest(remote)) return;
 
-                System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Sending block message [" + blockMessage.getGuid() + "] to node " + remote + Colors.ANSI_RESET);
-                System.out.println(Colors.ANSI_CYAN + "     " + blockMessage.getPayload() + Colors.ANSI_RESET);
+        List<String> locator = chainIndex.getLocator(getHeadHash());
+        if (after != null) locator.add(0, after);
 
-                sendMessage(remote, blockMessage, false);
-            }
+        JsonObject getHeadersJson = new JsonObject();
+        getHeadersJson.add(ChainSync.LOCATOR, gson.toJsonTree(locator));
+        System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Asking node " + remote + " for blocks after " + (after == null ? "my head" : "..." + after.substring(57)) + Colors.ANSI_RESET);
+        sendMessage(remote, new Message(this.name, remote, Message.GET_HEADERS_TYPE, getHeadersJson.toString()), false);
+    }
+
+    private void sendBlockRequests() {
+        for (Map.Entry<String, List<String>> curRequest : sync.nextRequests().entrySet()) {
+            sendGetData(curRequest.getKey(), curRequest.getValue());
         }
     }
 
@@ -253,30 +315,185 @@ public class Node implements NodeInter {
         else if (message.getType().equals(Message.BLOCK_TYPE)) {
             processBlockMessage(message);
         }
+        else if (message.getType().equals(Message.TRANSACTION_TYPE)) {
+            processTransactionMessage(message);
+        }
+        else if (message.getType().equals(Message.INV_TYPE)) {
+            processInvMessage(message);
+        }
+        else if (message.getType().equals(Message.GET_DATA_TYPE)) {
+            processGetDataMessage(message);
+        }
+        else if (message.getType().equals(Message.GET_HEADERS_TYPE)) {
+            processGetHeadersMessage(message);
+        }
+        else if (message.getType().equals(Message.HEADERS_TYPE)) {
+            processHeadersMessage(message);
+        }
     }
 
-    private void processBlockMessage(Message message) {
-        Gson gson = new Gson();
-        Block newBlock = gson.fromJson(message.getPayload(), Block.class);
-        addBlock(newBlock);
+    private void processInvMessage(Message message) {
+        String hash = new JsonParser().parse(message.getPayload()).getAsJsonObject().get(Gossip.HASH).getAsString();
+        if (!blockChain.containsKey(hash) && !orphans.contains(hash) && !sync.isPending(hash)) requestBlock(hash, message.getSender());
     }
 
-    private void cleanClients() {
-        ArrayList<Client> removeList = new ArrayList<>();
+    private void processGetDataMessage(Message message) {
+        JsonArray hashes = new JsonParser().parse(message.getPayload()).getAsJsonObject().get(ChainSync.HASHES).getAsJsonArray();
+        for (JsonElement curHash : hashes) {
+            Block block = blockChain.get(curHash.getAsString());
+            if (block == null) continue;
+
+            Message blockMessage = new Message(this.name, message.getSender(), Message.BLOCK_TYPE, "{}");
+            blockMessage.setBlock(block);
+            System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Sending block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] to node " + message.getSender() + Colors.ANSI_RESET);
+            sendMessage(message.getSender(), blockMessage, false);
+        }
+    }
 
-        for (Client curClient : openClients) {
-            if (curClient.getMessageState().equals(Client.DONE)) {
-                System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Client for message [" + curClient.getMessage().getGuid() + "] to node " + curClient.getMessage().getDestination() + " is done, cleaning up" + Colors.ANSI_RESET);
-                removeList.add(curClient);
+    //answer with the hashes on my chain after the first locator entry that is on it, up to MAX_HEADERS of them
+    private void processGetHeadersMessage(Message message) {
+        JsonArray locator = new JsonParser().parse(message.getPayload()).getAsJsonObject().get(ChainSync.LOCATOR).getAsJsonArray();
+        String head = getHeadHash(), fork = Block.FIRST_HASH;
+        for (JsonElement curHash : locator) {
+            if (chainIndex.isAncestor(curHash.getAsString(), head)) {
+                fork = curHash.getAsString();
+                break;
             }
-            else if (curClient.getMessageState().equals(Client.EXCEPTION)) {
-                System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Client for message [" + curClient.getMessage().getGuid() + "] to node " + curClient.getMessage().getDestination() + " errored, cleaning up" + Colors.ANSI_RESET);
-                awaitingReplies.remove(curClient.getMessage().getGuid());
-                removeList.add(curClient);
+        }
+
+        int headHeight = chainIndex.getHeight(head), endHeight = Math.min(headHeight, chainIndex.getHeight(fork) + ChainSync.MAX_HEADERS);
+        JsonObject headersJson = new JsonObject();
+        headersJson.add(ChainSync.HASHES, gson.toJsonTree(chainIndex.getPath(fork, chainIndex.getAncestor(head, endHeight))));
+        headersJson.addProperty(ChainSync.MORE, endHeight < headHeight);
+        sendMessage(message.getSender(), new Message(this.name, message.getSender(), Message.HEADERS_TYPE, headersJson.toString()), false);
+    }
+
+    private void processHeadersMessage(Message message) {
+        sync.finishHeaderRequest(message.getSender());
+        JsonObject headersJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
+        JsonArray hashes = headersJson.get(ChainSync.HASHES).getAsJsonArray();
+
+        List<String> missing = new ArrayList<>();
+        for (JsonElement curHash : hashes) {
+            if (!blockChain.containsKey(curHash.getAsString()) && !orphans.contains(curHash.getAsString())) missing.add(curHash.getAsString());
+        }
+        System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Node " + message.getSender() + " has " + missing.size() + " blocks I don't" + Colors.ANSI_RESET);
+        sync.addHeaders(missing, message.getSender());
+
+        //a long chain comes in parts, ask for the next one straight away so headers stay ahead of the downloads
+        if (headersJson.get(ChainSync.MORE).getAsBoolean() && hashes.size() > 0) {
+            requestHeaders(message.getSender(), hashes.get(hashes.size() - 1).getAsString());
+        }
+        sendBlockRequests();
+    }
+
+    //add a transaction to this node's mempool and, if it's new here, gossip it on
+    //safe to call from other threads than the node loop
+    public String submitTransaction(Transaction transaction) {
+        return submitTransaction(transaction, UUID.randomUUID(), null);
+    }
+
+    //the guid stays the same from node to node so copies coming round again are dropped before they're parsed
+    private String submitTransaction(Transaction transaction, UUID guid, String from) {
+        String result = mempool.submit(transaction);
+
+        if (result.equals(Mempool.ACCEPTED)) {
+            gossip.firstSeen(guid);
+            String transactionJson = gson.toJson(transaction);
+            for (String remote : gossip.pickPeers(from)) {
+                sendMessage(remote, new Message(guid, this.name, remote, Message.TRANSACTION_TYPE, transactionJson), false);
+            }
+        }
+        return result;
+    }
+
+    private void processTransactionMessage(Message message) {
+        if (!gossip.firstSeen(message.getGuid())) return;
+
+        Transaction transaction;
+        try {
+            transaction = gson.fromJson(message.getPayload(), Transaction.class);
+        } catch (JsonSyntaxException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        String result = submitTransaction(transaction, message.getGuid(), message.getSender());
+        if (!result.equals(Mempool.ACCEPTED) && !result.equals(Mempool.DUPLICATE)) {
+            System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Transaction from node " + message.getSender() + " was not added to the mempool: " + result + Colors.ANSI_RESET);
+        }
+    }
+
+    //the head moved: drop everything that is now in the chain from the mempool (more than the new block's transactions
+    //when the head moved to another branch), give back what was only in the blocks left behind, and give the API a
+    //snapshot of the new head; the ledger gets to the new head's balances from the old ones through the same blocks
+    private void headChanged(String oldHead) {
+        String ancestor = chainIndex.findCommonAncestor(oldHead, getHeadHash());
+        List<String> disconnected = chainIndex.getPath(ancestor, oldHead), path = chainIndex.getPath(ancestor, getHeadHash());
+        if (!disconnected.isEmpty()) {
+            System.out.println(Colors.ANSI_YELLOW + "Node (" + Thread.currentThread().getName() + "): Reorganized from block ..." + oldHead.substring(57) + ", " + disconnected.size() + " blocks left behind and " + path.size() + " added, tracking " + forkChoice.getTipCount() + " tips" + Colors.ANSI_RESET);
+        }
+
+        HashMap<String, Integer> headState = ledger.getState(getHeadHash());
+        mempool.setHeadState(headState);
+        for (String curHash : disconnected) {
+            mempool.returnDisconnected(blockChain.get(curHash).getTransactions());
+        }
+        for (String curHash : path) {
+            mempool.removeIncluded(blockChain.get(curHash).getTransactions());
+        }
+        api.publish(api.getSnapshot().advance(getHeadHash(), getHeadNumber(), headState, chainIndex.getHeight(ancestor), path));
+    }
+
+    //the demo traffic that used to go straight into blocks now goes through the mempool like everything else
+    //every node makes up its own, so it isn't gossiped; that would cost N * fanout messages per made-up transaction
+    private void submitGeneratedTransactions(HashMap<String, Integer> chainState) {
+        GenerateTransaction transactionGenerator = new GenerateTransaction(new HashMap<>(chainState));
+        for (Transaction curTxn : transactionGenerator.generateTransaction()) {
+            if (curTxn != null) mempool.submit(curTxn);
+        }
+    }
+
+    private void processBlockMessage(Message message) {
+        if (message.getBlock() == null) {
+            System.out.println(Colors.ANSI_RED + "Node (" + Thread.currentThread().getName() + "): Block message [" + message.getGuid() + "] from node " + message.getSender() + " has no block; ignoring" + Colors.ANSI_RESET);
+            return;
+        }
+
+        Block block = message.getBlock();
+        gossip.finishRequest(block.getHash());
+        boolean downloaded = sync.received(block.getHash());
+        if (blockChain.containsKey(block.getHash()) || orphans.contains(block.getHash())) return;
+
+        //we're missing blocks before this one; unless a download is already filling the gap, ask whoever sent it
+        if (!ledger.contains(block.getPrevious())) {
+            orphans.add(block.getHash(), block.getPrevious(), block);
+            if (!sync.isActive()) requestHeaders(message.getSender(), null);
+            return;
+        }
+
+        //adding a block can complete blocks that were waiting for it
+        String oldHead = getHeadHash();
+        boolean added = false;
+        ArrayDeque<Block> toAdd = new ArrayDeque<>();
+        toAdd.add(block);
+        while (!toAdd.isEmpty()) {
+            Block curBlock = toAdd.poll();
+            if (!blockChain.containsKey(curBlock.getHash()) && addBlock(curBlock)) {
+                if (curBlock == block) added = true;
+                toAdd.addAll(orphans.removeChildren(curBlock.getHash()));
             }
         }
 
-        openClients.removeAll(removeList);
+        //pass on new blocks, but not history we downloaded (the others have it) and only the end of a completed run
+        if (added && !downloaded) announceBlock(block, message.getSender());
+        if (!getHeadHash().equals(oldHead) && longestChainHead != block) announceBlock(longestChainHead, message.getSender());
+    }
+
+    //a message the client couldn't deliver won't get a reply, stop waiting for it
+    private void cleanUpFailedMessage(Message message) {
+        System.out.println(Colors.ANSI_CYAN + "Node (" + Thread.currentThread().getName() + "): Message [" + message.getGuid() + "] to node " + message.getDestination() + " could not be sent, cleaning up" + Colors.ANSI_RESET);
+        awaitingReplies.remove(message.getGuid());
     }
 
     private void doTests() {
@@ -322,14 +539,50 @@ public class Node implements NodeInter {
         sendMessage(reply.getDestination(), reply, false);
     }
 
-    private void writeToDisk() throws IOException {
-        JsonObject diskInfo = new JsonObject();
-        diskInfo.addProperty("node_name", this.name);
-        Gson gson = new Gson();
-        diskInfo.addProperty("block_chain", gson.toJson(blockChain));
-        String fileName = "Node_" + this.name + "_blockChain.json";
-        BufferedWriter writer = new BufferedWriter(new FileWriter(fileName));
-        writer.write(diskInfo.toString());
-        writer.close();
+    //rebuild the chain from the blocks saved by an earlier run, in the order they were accepted
+    //each block is checked the same way as one arriving from the network, so a damaged or tampered store can't add bad blocks
+    private void loadFromStore() {
+        if (blockStore == null) return;
+
+        long start = System.nanoTime();
+        int restored = 0, rejected = 0;
+
+        for (String hash : blockStore.getHashes()) {
+            Block block = null;
+            try {
+                block = blockStore.readBlock(hash);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            if (block == null || !verifyBlock(block)) {
+                rejected++;
+                continue;
+            }
+
+            this.blockChain.put(block.getHash(), block);
+            this.api.addBlock(block.getHash(), block);
+            this.chainIndex.add(block.getHash(), block.getPrevious());
+            this.ledger.addBlock(block.getHash(), block.getCredits(), block.getTransactions());
+            if (this.forkChoice.add(block.getHash(), chainWork(block))) this.longestChainHead = block;
+            restored++;
+        }
+
+        if (longestChainHead != null) headChanged(Block.FIRST_HASH);
+
+        if (restored + rejected > 0) {
+            System.out.println(Colors.ANSI_YELLOW + "Node (" + Thread.currentThread().getName() + "): Restored " + restored + " blocks from disk (" + rejected + " rejected) in " + (System.nanoTime() - start) / 1000000 + " ms, head is block " + (longestChainHead == null ? 0 : longestChainHead.getNumber()) + Colors.ANSI_RESET);
+        }
+    }
+
+    //only the new block is written, the store never rewrites what is already on disk
+    private void saveBlock(Block block) {
+        if (blockStore == null) return;
+
+        try {
+            blockStore.appendBlock(block);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,215 @@
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//local HTTP API for clients of one node, everything is JSON
+//  GET  /head                the head block's hash and number and the height of its chain
+//  GET  /balance/<account>   the account's balance after the head
+//  GET  /block/<hash>        any block this node has accepted, in the same form as on the JSON wire
+//  GET  /block/height/<n>    the block at height n on the head's chain
+//  POST /transaction         body {"id", "from", "to", "amount", "fee"}, answers with the mempool's result
+//reads are served from the latest ChainSnapshot and a map of accepted blocks that only grows, never from the node
+//loop's own state, so a request never waits for the node and the node never waits for a request
+public class NodeApi {
+    private static final int RENDERED_BLOCK_CACHE = 1000;
+    private final NodeInter node;
+    private final Gson gson;
+    private final ConcurrentHashMap<String, Object> blocks;
+    //blocks are the bulk of what's read and never change once accepted, so their JSON is made once per block
+    private final Cache<String, byte[]> renderedBlocks;
+    private volatile ChainSnapshot snapshot;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public NodeApi(NodeInter node) {
+        this.node = node;
+        this.gson = new Gson();
+        this.blocks = new ConcurrentHashMap<>();
+        this.renderedBlocks = CacheBuilder.newBuilder().maximumSize(RENDERED_BLOCK_CACHE).build();
+        this.snapshot = ChainSnapshot.empty();
+    }
+
+    //called by the node loop for every block it accepts, the block must not change afterwards
+    public void addBlock(String hash, Object block) {
+        blocks.put(hash, block);
+    }
+
+    //called by the node loop whenever its head moves
+    public void publish(ChainSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public ChainSnapshot getSnapshot() { return snapshot; }
+
+    public void start(int port) {
+        //the server writes headers and body separately, so without this every keep-alive request waits on a delayed ACK
+        //(about 40 ms); it's read when the first server is made, so it has to be set before that
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        InetSocketAddress address;
+        try {
+            InetAddress host = NodeRunner.API_BIND_ADDRESS == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(NodeRunner.API_BIND_ADDRESS);
+            address = new InetSocketAddress(host, port);
+            server = HttpServer.create(address, 0);
+        } catch (IOException e) {
+            System.out.println(Colors.ANSI_RED + "NodeApi (" + Thread.currentThread().getName() + "): Could not start API on port " + port + Colors.ANSI_RESET);
+            e.printStackTrace();
+            return;
+        }
+
+        server.createContext("/head", handler(this::handleHead));
+        server.createContext("/balance/", handler(this::handleBalance));
+        server.createContext("/block/", handler(this::handleBlock));
+        server.createContext("/transaction", handler(this::handleTransaction));
+
+        executor = Executors.newFixedThreadPool(NodeRunner.API_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "NodeApi");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+        System.out.println(Colors.ANSI_PURPLE + "* Started API on " + address.getAddress().getHostAddress() + ":" + port + Colors.ANSI_RESET);
+    }
+
+    public void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleHead(HttpExchange exchange) throws IOException {
+        if (!isMethod(exchange, "GET")) return;
+
+        ChainSnapshot current = snapshot;
+        JsonObject headJson = new JsonObject();
+        headJson.addProperty("hash", current.getHeadHash());
+        headJson.addProperty("number", current.getHeadNumber());
+        headJson.addProperty("height", current.getHeight());
+        respond(exchange, 200, headJson.toString());
+    }
+
+    private void handleBalance(HttpExchange exchange) throws IOException {
+        if (!isMethod(exchange, "GET")) return;
+
+        String account = exchange.getRequestURI().getPath().substring("/balance/".length());
+        ChainSnapshot current = snapshot;
+        Integer balance = current.getBalance(account);
+
+        JsonObject balanceJson = new JsonObject();
+        balanceJson.addProperty("account", account);
+        balanceJson.addProperty("balance", balance == null ? 0 : balance);
+        balanceJson.addProperty("head", current.getHeadHash());
+        respond(exchange, 200, balanceJson.toString());
+    }
+
+    private void handleBlock(HttpExchange exchange) throws IOException {
+        if (!isMethod(exchange, "GET")) return;
+
+        String key = exchange.getRequestURI().getPath().substring("/block/".length());
+        String hash = key;
+        if (key.startsWith("height/")) {
+            try {
+                hash = snapshot.getHashAt(Integer.parseInt(key.substring("height/".length())));
+            } catch (NumberFormatException e) {
+                respondError(exchange, 400, "height is not a number");
+                return;
+            }
+        }
+
+        Object block = hash == null ? null : blocks.get(hash);
+        if (block == null) {
+            respondError(exchange, 404, "no such block");
+            return;
+        }
+
+        byte[] body;
+        try {
+            body = renderedBlocks.get(hash, () -> gson.toJson(block).getBytes(StandardCharsets.UTF_8));
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            respondError(exchange, 500, "could not render block");
+            return;
+        }
+        respond(exchange, 200, body);
+    }
+
+    private void handleTransaction(HttpExchange exchange) throws IOException {
+        if (!isMethod(exchange, "POST")) return;
+
+        Transaction transaction;
+        try {
+            transaction = gson.fromJson(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), Transaction.class);
+        } catch (JsonSyntaxException e) {
+            respondError(exchange, 400, "body is not a transaction");
+            return;
+        }
+
+        String result = node.submitTransaction(transaction);
+        int status = 202;
+        if (result.equals(Mempool.DUPLICATE)) status = 409;
+        else if (result.equals(Mempool.INVALID)) status = 400;
+        else if (result.equals(Mempool.FULL)) status = 503;
+
+        JsonObject resultJson = new JsonObject();
+        resultJson.addProperty("result", result);
+        respond(exchange, status, resultJson.toString());
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    //a request that throws gets a 500 instead of the connection just closing
+    private static HttpHandler handler(Handler handler) {
+        return exchange -> {
+            try {
+                handler.handle(exchange);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                respondError(exchange, 500, "internal error");
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static boolean isMethod(HttpExchange exchange, String method) throws IOException {
+        if (exchange.getRequestMethod().equals(method)) return true;
+        respondError(exchange, 405, "use " + method);
+        return false;
+    }
+
+    private static void respondError(HttpExchange exchange, int status, String error) throws IOException {
+        JsonObject errorJson = new JsonObject();
+        errorJson.addProperty("error", error);
+        respond(exchange, status, errorJson.toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        respond(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
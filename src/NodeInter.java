@@ -1,4 +1,7 @@
 public interface NodeInter {
     public void run();
     public void startServer();
+    public int getHeadNumber();
+    public String getHeadHash();
+    public String submitTransaction(Transaction transaction);
 }
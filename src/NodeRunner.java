@@ -5,6 +5,34 @@ import java.util.HashMap;
 
 public class NodeRunner {
     public static final int STAKE_SLOW_FACTOR = 20;
+    //number of threads each PoW node mines with, override with -DminerThreads=<n>
+    public static final int MINER_THREADS = Integer.getInteger("minerThreads", Runtime.getRuntime().availableProcessors());
+    //number of threads each node's server reads connections with, override with -DioThreads=<n>
+    public static final int IO_THREADS = Integer.getInteger("ioThreads", 2);
+    //send messages as JSON instead of the binary format so they can be read off the wire, turn on with -DjsonWire=true
+    public static final boolean JSON_WIRE = Boolean.getBoolean("jsonWire");
+    //when the block store forces appended blocks to disk (BlockStore.FSYNC_ALWAYS, FSYNC_INTERVAL or FSYNC_NEVER), override with -DfsyncPolicy=<policy>
+    public static final String FSYNC_POLICY = System.getProperty("fsyncPolicy", BlockStore.FSYNC_INTERVAL);
+    //most transactions a block may carry, blocks with more are rejected, override with -DmaxBlockTransactions=<n>
+    public static final int MAX_BLOCK_TRANSACTIONS = Integer.getInteger("maxBlockTransactions", 5000);
+    //most transactions each node keeps waiting for a block and how long they wait, override with -DmempoolSize=<n> and -DmempoolMaxAge=<ms>
+    public static final int MEMPOOL_SIZE = Integer.getInteger("mempoolSize", 100_000);
+    public static final long MEMPOOL_MAX_AGE = Long.getLong("mempoolMaxAge", 10 * 60 * 1000);
+    //each node's HTTP API listens on its port plus this (-1 turns the API off) and serves requests on API_THREADS threads,
+    //override with -DapiPortOffset=<n> and -DapiThreads=<n>
+    public static final int API_PORT_OFFSET = Integer.getInteger("apiPortOffset", 1000);
+    public static final int API_THREADS = Integer.getInteger("apiThreads", 4);
+    //the API takes transactions from anyone who can reach it, so it only listens on loopback unless told otherwise with
+    //-DapiBindAddress=<address> (0.0.0.0 for every interface)
+    public static final String API_BIND_ADDRESS = System.getProperty("apiBindAddress");
+    //how many random peers a node passes each block announcement, transaction and heartbeat on to, override with -DgossipFanout=<n>
+    public static final int GOSSIP_FANOUT = Integer.getInteger("gossipFanout", 8);
+    //how many of the latest blocks count towards a stake node's share of the chain (0 counts the whole chain), override with -DstakeWindow=<n>
+    public static final int STAKE_WINDOW = Integer.getInteger("stakeWindow", 0);
+    //how many blocks a stake leader may have waiting for verifier signatures at once, override with -DstakePipeline=<n>
+    public static final int STAKE_PIPELINE = Integer.getInteger("stakePipeline", 4);
+    //how many blocks a stake leader may propose in one term, override with -DstakeTermBlocks=<n>
+    public static final int STAKE_TERM_BLOCKS = Integer.getInteger("stakeTermBlocks", STAKE_PIPELINE);
 
     public static void main(String[] args) {
         //config string format: "<mode> myName myName 127.0.0.1 5000 remote_1 127.0.0.1 5001 remote_2 127.0.0.1 5002", ...
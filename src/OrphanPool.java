@@ -0,0 +1,78 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//blocks that arrived before the block they build on, kept until that block arrives and they can be added in order
+//while syncing, blocks come from several peers at once and rarely in order, so this is where they wait
+//bounded so a peer can't fill it up: past maxSize the oldest orphan is dropped, and orphans older than maxAgeMs are dropped
+//T is whatever the node needs to add the block later (the block, or the whole message for stake blocks)
+public class OrphanPool<T> {
+    private final int maxSize;
+    private final long maxAgeMs;
+    //insertion order, so the first entry is always the oldest
+    private final LinkedHashMap<String, Entry<T>> byHash;
+    private final HashMap<String, List<String>> byPrevious;
+
+    private static class Entry<T> {
+        private final String previous;
+        private final T item;
+        private final long arrival;
+
+        private Entry(String previous, T item, long arrival) {
+            this.previous = previous;
+            this.item = item;
+            this.arrival = arrival;
+        }
+    }
+
+    public OrphanPool(int maxSize, long maxAgeMs) {
+        this.maxSize = maxSize;
+        this.maxAgeMs = maxAgeMs;
+        this.byHash = new LinkedHashMap<>();
+        this.byPrevious = new HashMap<>();
+    }
+
+    public boolean contains(String hash) { return byHash.containsKey(hash); }
+
+    public int size() { return byHash.size(); }
+
+    public void add(String hash, String previous, T item) {
+        if (byHash.containsKey(hash)) return;
+
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry<T>>> oldest = byHash.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<String, Entry<T>> curOldest = oldest.next();
+            if (byHash.size() < maxSize && curOldest.getValue().arrival >= now - maxAgeMs) break;
+            oldest.remove();
+            unlink(curOldest.getKey(), curOldest.getValue().previous);
+        }
+
+        byHash.put(hash, new Entry<>(previous, item, now));
+        byPrevious.computeIfAbsent(previous, key -> new ArrayList<>()).add(hash);
+    }
+
+    //take out and return the orphans that build on previous, which can now be added
+    public List<T> removeChildren(String previous) {
+        List<T> children = new ArrayList<>();
+        List<String> hashes = byPrevious.remove(previous);
+        if (hashes == null) return children;
+
+        for (String curHash : hashes) {
+            Entry<T> entry = byHash.remove(curHash);
+            if (entry != null) children.add(entry.item);
+        }
+        return children;
+    }
+
+    private void unlink(String hash, String previous) {
+        List<String> siblings = byPrevious.get(previous);
+        if (siblings == null) return;
+
+        siblings.remove(hash);
+        if (siblings.isEmpty()) byPrevious.remove(previous);
+    }
+}
@@ -1,74 +1,184 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+//accepts connections on this thread and hands each one to one of a few I/O threads
+//every I/O thread multiplexes its connections on a selector, so the thread count doesn't grow with the number of peers or messages
+//decoded messages are posted to the node's event queue; when too many are waiting the I/O threads stop reading until there's room
 public class Server extends Thread {
     public final static String ACK = "ACK";
-    private ServerSocket server;
-    private boolean running;
-    private volatile ArrayList<MessageHolder> messageHolders;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private ServerSocketChannel server;
+    private volatile boolean running;
+    private final IoThread[] ioThreads;
+    private final EventQueue events;
+    private final AtomicInteger connectionCount;
+    private int nextIoThread;
 
-    public Server(int port) {
+    public Server(int port, EventQueue events) {
         try {
-            this.server = new ServerSocket(port);
+            this.server = ServerSocketChannel.open();
+            this.server.bind(new InetSocketAddress(port));
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        this.messageHolders = new ArrayList<>();
+        this.events = events;
+        this.connectionCount = new AtomicInteger();
+        this.ioThreads = new IoThread[NodeRunner.IO_THREADS];
+        this.nextIoThread = 0;
         this.running = false;
     }
 
     public void stopServer() {
+        this.running = false;
         try {
             this.server.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        this.running = false;
+        for (IoThread curThread : ioThreads) {
+            if (curThread != null) curThread.selector.wakeup();
+        }
         this.interrupt();
     }
 
     public void run() {
-        System.out.println(Colors.ANSI_PURPLE + "* Started server on port " + server.getLocalPort() + " to listen for messages" + Colors.ANSI_RESET);
+        System.out.println(Colors.ANSI_PURPLE + "* Started server on port " + server.socket().getLocalPort() + " to listen for messages" + Colors.ANSI_RESET);
         running = true;
 
-        while(running) {
+        try {
+            for (int i = 0; i < ioThreads.length; i++) {
+                ioThreads[i] = new IoThread();
+                ioThreads[i].setDaemon(true);
+                ioThreads[i].start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        while (running) {
             try {
-                Socket socket = server.accept();
-                //start a thread to handle receiving the message
-                MessageHolder newHolder = new MessageHolder(socket);
-                newHolder.start();
+                SocketChannel socket = server.accept();
+                System.out.println(Colors.ANSI_PURPLE + "* Another node connected..." + Colors.ANSI_RESET);
 
-                synchronized(messageHolders) {
-                    messageHolders.add(newHolder);
-                }
+                //spread connections over the I/O threads round robin
+                ioThreads[nextIoThread].register(socket);
+                nextIoThread = (nextIoThread + 1) % ioThreads.length;
             } catch (IOException ioException) {
                 System.out.println(Colors.ANSI_PURPLE + "* Closing server socket..." + Colors.ANSI_RESET);
             }
         }
     }
 
-    public MessageHolder getNextReadyHolder() {
-        MessageHolder nextReady = null;
-        int i = 0, max;
+    public int getConnectionCount() { return connectionCount.get(); }
+
+    private class IoThread extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> newConnections;
+        //one direct buffer per thread, the bytes are copied into the connection's own frame buffer as they are decoded
+        private final ByteBuffer readBuffer;
 
-        synchronized (messageHolders) { max = messageHolders.size(); }
+        private IoThread() throws IOException {
+            this.selector = Selector.open();
+            this.newConnections = new ConcurrentLinkedQueue<>();
+            this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+
+        private void register(SocketChannel socket) {
+            newConnections.add(socket);
+            selector.wakeup();
+        }
 
-        while (i < max && nextReady == null) {
-            if (messageHolders.get(i).getMessageState().equals(MessageHolder.READY)) {
-                nextReady = messageHolders.get(i);
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    registerNewConnections();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) readFrom(key);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                for (SelectionKey curKey : selector.keys()) curKey.channel().close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            i++;
         }
 
-        if (nextReady != null) {
-            synchronized (messageHolders) { messageHolders.remove(i - 1); }
+        private void registerNewConnections() {
+            SocketChannel socket = newConnections.poll();
+            while (socket != null) {
+                try {
+                    socket.configureBlocking(false);
+                    socket.register(selector, SelectionKey.OP_READ, new MessageHolder());
+                    connectionCount.incrementAndGet();
+                } catch (ClosedChannelException e) {
+                    System.out.println(Colors.ANSI_RED + "WARNING Server (" + Thread.currentThread().getName() + "): Connection closed before it was registered" + Colors.ANSI_RESET);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                socket = newConnections.poll();
+            }
         }
 
-        return nextReady;
-    }
+        private void readFrom(SelectionKey key) {
+            SocketChannel socket = (SocketChannel) key.channel();
+            MessageHolder holder = (MessageHolder) key.attachment();
 
-    public int getMessageHolderCount() { return messageHolders.size(); }
+            try {
+                readBuffer.clear();
+                int count = socket.read(readBuffer);
+                readBuffer.flip();
+
+                if (!holder.decode(readBuffer)) {
+                    System.out.println(Colors.ANSI_RED + "WARNING Server (" + Thread.currentThread().getName() + "): Bad frame from " + socket.getRemoteAddress() + ", closing connection" + Colors.ANSI_RESET);
+                    count = -1;
+                }
+
+                Message message = holder.nextMessage();
+                while (message != null) {
+                    System.out.println(Colors.ANSI_PURPLE + "Server (" + Thread.currentThread().getName() + "): Ready with " + message.getType() + " message [" + message.getGuid() + "] from " + message.getSender() + " waiting to deliver..." + Colors.ANSI_RESET);
+                    events.postMessage(message);
+                    message = holder.nextMessage();
+                }
+
+                if (count < 0) close(key);
+            } catch (IOException e) {
+                System.out.println(Colors.ANSI_RED + "WARNING Server (" + Thread.currentThread().getName() + "): Communication failed" + Colors.ANSI_RESET);
+                close(key);
+            } catch (InterruptedException e) {
+                close(key);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            connectionCount.decrementAndGet();
+        }
+    }
 }
@@ -0,0 +1,85 @@
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+//signatures this node already checked, by signer and block hash, so the same signature is only checked once: a leader
+//checks each verifier's signature when the reply comes in and again when it adds its own block, and every node sees
+//a block's signatures again whenever the block is relayed or downloaded again
+//an entry only counts if the signature and the key are the same ones that were checked, so a different signature for
+//the same block (or a signer's new key after a restart) is always checked for real; only good signatures are kept
+//bounded, least recently used entries go first; safe to use from several threads
+public class SignatureCache {
+    private static final int MAX_ENTRIES = 50_000;
+    private final Cache<String, Verified> verified;
+    private final AtomicLong hits, misses;
+
+    private static class Verified {
+        private final String signature;
+        private final PublicKey key;
+
+        private Verified(String signature, PublicKey key) {
+            this.signature = signature;
+            this.key = key;
+        }
+    }
+
+    public SignatureCache() {
+        this.verified = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    public boolean verify(String signer, String hash, String signature, PublicKey key) {
+        if (isVerified(signer, hash, signature, key)) return true;
+        if (!Signer.verify(hash, signature, key)) return false;
+
+        verified.put(cacheKey(signer, hash), new Verified(signature, key));
+        return true;
+    }
+
+    //same as Signer.verifyAll, but only the signatures that aren't cached are checked
+    public List<String> verifyAll(String hash, Map<String, String> signatures, Map<String, PublicKey> publicKeys) {
+        HashMap<String, String> unchecked = new HashMap<>();
+        for (Map.Entry<String, String> curSignature : signatures.entrySet()) {
+            PublicKey key = publicKeys.get(curSignature.getKey());
+            if (key != null && !isVerified(curSignature.getKey(), hash, curSignature.getValue(), key)) {
+                unchecked.put(curSignature.getKey(), curSignature.getValue());
+            }
+        }
+        if (unchecked.isEmpty()) return new ArrayList<>();
+
+        List<String> failed = Signer.verifyAll(hash, unchecked, publicKeys);
+        for (Map.Entry<String, String> curSignature : unchecked.entrySet()) {
+            if (!failed.contains(curSignature.getKey())) {
+                verified.put(cacheKey(curSignature.getKey(), hash), new Verified(curSignature.getValue(), publicKeys.get(curSignature.getKey())));
+            }
+        }
+        return failed;
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    private boolean isVerified(String signer, String hash, String signature, PublicKey key) {
+        Verified entry = verified.getIfPresent(cacheKey(signer, hash));
+        if (entry != null && entry.key.equals(key) && entry.signature.equals(signature)) {
+            hits.incrementAndGet();
+            return true;
+        }
+
+        misses.incrementAndGet();
+        return false;
+    }
+
+    //hashes are always 64 characters, so the key can't be confused between signers
+    private static String cacheKey(String signer, String hash) {
+        return signer + ":" + hash;
+    }
+}
@@ -0,0 +1,94 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+//a node's key pair and the block signatures made and checked with it (verifier and final signatures on stake blocks)
+//these are real signatures (SHA256withRSA through java.security.Signature) instead of the hash "encrypted" with the
+//private key and decrypted again to compare, and signatures travel as base64 the same as before
+//RSA because checking is what every node does for every signature, and on the JDKs this builds for an RSA check costs a
+//fraction of an ECDSA one (Ed25519 needs Java 15), with 2048 bit keys since 1024 bit ones are no longer safe to sign with
+//Signature objects can't be shared between threads and are costly to look up, so every thread keeps its own
+public class Signer {
+    public static final String KEY_ALGORITHM = "RSA", SIGNATURE_ALGORITHM = "SHA256withRSA";
+    public static final int KEY_SIZE = 2048;
+    //batches at least this big are checked in parallel
+    private static final int PARALLEL_BATCH = 8;
+    private static final ThreadLocal<Signature> SIGNATURES = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance(SIGNATURE_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private final KeyPair keyPair;
+
+    public Signer() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+        keyPairGenerator.initialize(KEY_SIZE);
+        this.keyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    public PublicKey getPublicKey() { return keyPair.getPublic(); }
+
+    //base64 signature of a block hash, null if it couldn't be made
+    public String sign(String hash) {
+        try {
+            Signature signature = SIGNATURES.get();
+            signature.initSign(keyPair.getPrivate());
+            signature.update(hash.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(signature.sign());
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static boolean verify(String hash, String signature, PublicKey key) {
+        if (signature == null || key == null) return false;
+
+        try {
+            Signature verifier = SIGNATURES.get();
+            verifier.initVerify(key);
+            verifier.update(hash.getBytes(StandardCharsets.UTF_8));
+            return verifier.verify(Base64.getDecoder().decode(signature));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            //a malformed signature is just a bad one
+            return false;
+        }
+    }
+
+    //the signers whose signature of hash doesn't check out, empty if they all do; signers whose key we don't have are skipped
+    //a block's signatures are independent of each other, so big batches are checked in parallel
+    public static List<String> verifyAll(String hash, Map<String, String> signatures, Map<String, PublicKey> publicKeys) {
+        List<Map.Entry<String, String>> checkable = new ArrayList<>();
+        for (Map.Entry<String, String> curSignature : signatures.entrySet()) {
+            if (publicKeys.containsKey(curSignature.getKey())) checkable.add(curSignature);
+        }
+
+        Stream<Map.Entry<String, String>> checks = checkable.size() >= PARALLEL_BATCH ? checkable.parallelStream() : checkable.stream();
+        return checks.filter(curSignature -> !verify(hash, curSignature.getValue(), publicKeys.get(curSignature.getKey())))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    //a public key as sent in a PUBLIC_KEY message
+    public static String encodePublicKey(PublicKey key) {
+        return Base64.getEncoder().encodeToString(key.getEncoded());
+    }
+
+    public static PublicKey decodePublicKey(String encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(encoded)));
+    }
+}
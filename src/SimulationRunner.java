@@ -0,0 +1,97 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//runs a whole cluster in one JVM over a LoopbackNetwork and reports how well the nodes agree on the chain
+//usage: SimulationRunner <stake|pow> <nodeCount> <seconds> [latencyMs] [bytesPerSecond] [lossRate] [partitionSeconds]
+//with partitionSeconds the first half of the nodes is cut off from the second half for that long, starting a third of the way in
+//the nodes' own logging is switched off; for PoW run with -DminerThreads=1 so the miners don't start nodeCount * cores threads
+public class SimulationRunner {
+    private static final int REPORT_INTERVAL = 5000;
+
+    public static void main(String[] args) throws InterruptedException {
+        String mode = args[0];
+        int nodeCount = Integer.parseInt(args[1]);
+        long durationMs = Long.parseLong(args[2]) * 1000;
+        long latencyMs = args.length > 3 ? Long.parseLong(args[3]) : 20;
+        long bytesPerSecond = args.length > 4 ? Long.parseLong(args[4]) : 0;
+        double lossRate = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+        long partitionMs = args.length > 6 ? Long.parseLong(args[6]) * 1000 : 0;
+
+        HashMap<String, RemoteNode> remoteNodes = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            String curName = String.format("node_%03d", i);
+            names.add(curName);
+            remoteNodes.put(curName, new RemoteNode(curName, "loopback", 0));
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        console.println(Colors.ANSI_PURPLE + "* Simulating " + nodeCount + " " + mode + " nodes for " + durationMs / 1000 + " s, latency " + latencyMs + " ms, "
+                + (bytesPerSecond > 0 ? bytesPerSecond + " B/s per link" : "unlimited bandwidth") + ", loss " + lossRate + Colors.ANSI_RESET);
+
+        LoopbackNetwork network = new LoopbackNetwork(latencyMs, bytesPerSecond, lossRate);
+        List<NodeInter> nodes = new ArrayList<>();
+        for (String curName : names) {
+            Transport transport = new LoopbackTransport(network);
+            nodes.add(mode.equals("stake") ? new StakeNode(curName, remoteNodes, transport, null) : new Node(curName, remoteNodes, transport, null));
+        }
+
+        for (int i = 0; i < nodes.size(); i++) {
+            NodeInter curNode = nodes.get(i);
+            curNode.startServer();
+            Thread nodeThread = new Thread(curNode::run, names.get(i));
+            nodeThread.setDaemon(true);
+            nodeThread.start();
+        }
+
+        long start = System.currentTimeMillis();
+        long partitionStart = durationMs / 3, partitionEnd = partitionStart + partitionMs;
+        boolean partitioned = false;
+
+        while (System.currentTimeMillis() - start < durationMs) {
+            Thread.sleep(Math.min(REPORT_INTERVAL, durationMs - (System.currentTimeMillis() - start)));
+            long elapsed = System.currentTimeMillis() - start;
+
+            if (partitionMs > 0 && !partitioned && elapsed >= partitionStart && elapsed < partitionEnd) {
+                network.partition(names.subList(0, nodeCount / 2));
+                partitioned = true;
+                console.println(Colors.ANSI_PURPLE + "* Partitioned the network in two" + Colors.ANSI_RESET);
+            }
+            else if (partitioned && elapsed >= partitionEnd) {
+                network.heal();
+                partitioned = false;
+                console.println(Colors.ANSI_PURPLE + "* Healed the partition" + Colors.ANSI_RESET);
+            }
+
+            report(console, elapsed, nodes, network);
+        }
+
+        network.shutdown();
+        System.exit(0);
+    }
+
+    //heights across the cluster and the share of nodes whose head is the most common one
+    private static void report(PrintStream console, long elapsed, List<NodeInter> nodes, LoopbackNetwork network) {
+        HashMap<String, Integer> headCounts = new HashMap<>();
+        int minHeight = Integer.MAX_VALUE, maxHeight = 0;
+
+        for (NodeInter curNode : nodes) {
+            int height = curNode.getHeadNumber();
+            minHeight = Math.min(minHeight, height);
+            maxHeight = Math.max(maxHeight, height);
+            headCounts.merge(curNode.getHeadHash(), 1, Integer::sum);
+        }
+
+        int agreeing = 0;
+        for (Map.Entry<String, Integer> curHead : headCounts.entrySet()) agreeing = Math.max(agreeing, curHead.getValue());
+
+        console.println(Colors.ANSI_YELLOW + String.format("%6.1f s: height %d..%d, %d distinct heads, %.1f%% on the most common, messages sent %d delivered %d dropped %d failed %d, %.1f MB",
+                elapsed / 1000.0, minHeight, maxHeight, headCounts.size(), 100.0 * agreeing / nodes.size(),
+                network.getSentCount(), network.getDeliveredCount(), network.getDroppedCount(), network.getFailedCount(), network.getSentBytes() / 1e6) + Colors.ANSI_RESET);
+    }
+}
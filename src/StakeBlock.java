@@ -96,6 +96,17 @@ public class StakeBlock {
         return verifiers;
     }
 
+    //coins this block creates, before any of its transactions: the creator's stake plus a reward for every verifier,
+    //and the creator also gets the fees its transactions pay
+    public HashMap<String, Integer> getCredits() {
+        HashMap<String, Integer> credits = new HashMap<>();
+        credits.put(stakePerson.getStake_person(), stakePerson.getStake_amount() + Block.totalFees(transactions));
+        for (String curVerifier : verifiers.keySet()) {
+            credits.merge(curVerifier, reward, Integer::sum);
+        }
+        return credits;
+    }
+
     public String getSignature() {
         return signature;
     }
@@ -1,14 +1,10 @@
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 
-import javax.crypto.NoSuchPaddingException;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.security.*;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class StakeNode implements NodeInter {
     //node states
@@ -18,132 +14,240 @@ public class StakeNode implements NodeInter {
             LAST_BLOCK_INDEX = "lastBlockIndex", LAST_BLOCK_TERM = "lastBlockTerm";
     //field names for heartbeat message
     public static final String LEADER_TERM = "leaderTerm", LEADER_ID = "leaderId";
-    //field names for block messages
-    public static final String BLOCK_ELE = "block", BLOCK_META_ELE = "blockMeta";
     private final int PROBABILITY = 40;
     private final int HEARTBEAT_TIME = 50 * NodeRunner.STAKE_SLOW_FACTOR, BLOCK_PERIOD = 750 * NodeRunner.STAKE_SLOW_FACTOR, MAJORITY;
+    //a follower stands for election after a random MIN_ELECTION_TIMEOUT..MAX_ELECTION_TIMEOUT without hearing from a leader
+    private final int MIN_ELECTION_TIMEOUT = 150 * NodeRunner.STAKE_SLOW_FACTOR, MAX_ELECTION_TIMEOUT = 300 * NodeRunner.STAKE_SLOW_FACTOR;
+    //how long a proposed block has to get enough stake before it (and every block after it) is dropped
+    private final int VERIFY_TIMEOUT = 10 * HEARTBEAT_TIME;
+    //how long to wait for the reply to a vote request or verify message before forgetting about it
+    private final int REPLY_TIMEOUT = 10 * HEARTBEAT_TIME;
+    //how many blocks a verifier remembers the balances after, for pipelined blocks that build on them
+    private final int MAX_VERIFIED_STATES = 64;
     private String name;
     private HashMap<String, StakeBlock> blockChain;
+    private ChainIndex chainIndex;
+    private ForkChoice<Long> forkChoice;
+    private Ledger ledger;
     private HashMap<String, RemoteNode> remoteNodes;
     private StakeBlock longestChainHead;
-    private Server server;
+    private EventQueue events;
+    private Transport transport;
     private HashMap<UUID, Message> awaitingReplies;
-    private ArrayList<Client> openClients;
-    private ElectionTimer timer;
+    private HashMap<UUID, TimerService.Timer> replyTimers;
+    private TimerService timers;
+    private TimerService.Timer electionTimer, heartbeatTimer, blockPeriodTimer;
     private Integer voteCount, term;
     private String state, votedFor;
     private HashMap<String, BlockMeta> blockMeta;
-    private long blockPeriodStart;
-    private StakeBlock blockToVerify;
-    private BlockMeta toVerifyMeta;
-    private int verifyCount;
-    private KeyGenerator keyGenerator;
-    private EncryptDecrypt encryptDecrypt;
+    private CreatorTally creatorTally;
+    private BlockPipeline pipeline;
+    //balances after blocks this node verified that aren't in the chain yet, oldest first
+    private LinkedHashMap<String, VerifiedState> verifiedStates;
+    private Signer signer;
     private HashMap<String, PublicKey> publicKeys;
+    private SignatureCache signatureCache;
+    private BlockStore blockStore;
+    private Mempool mempool;
+    private NodeApi api;
+    private Gossip gossip;
+    //block messages that arrived before their previous block
+    private OrphanPool<Message> orphans;
+    private ChainSync sync;
+    private int apiPort;
+    private Gson gson;
+
+    //what a verifier keeps about a block it verified: the balances after it, the last block it builds on that is in the
+    //ledger, and the ids of the transactions in it and the verified blocks between it and that one
+    private static class VerifiedState {
+        private final HashMap<String, Integer> state;
+        private final String ledgerBase;
+        private final HashSet<String> transactionIds;
+
+        private VerifiedState(HashMap<String, Integer> state, String ledgerBase, HashSet<String> transactionIds) {
+            this.state = state;
+            this.ledgerBase = ledgerBase;
+            this.transactionIds = transactionIds;
+        }
+    }
 
     public StakeNode(String name, int port, HashMap<String, RemoteNode> remoteNodes) {
+        this(name, remoteNodes, new TcpTransport(port, remoteNodes), "StakeNode_" + name + "_blockStore");
+        if (NodeRunner.API_PORT_OFFSET >= 0) this.apiPort = port + NodeRunner.API_PORT_OFFSET;
+    }
+
+    //storeDirectory null keeps the chain in memory only
+    public StakeNode(String name, HashMap<String, RemoteNode> remoteNodes, Transport transport, String storeDirectory) {
         this.name = name;
         this.blockChain = new HashMap<>();
+        this.chainIndex = new ChainIndex();
+        this.forkChoice = new ForkChoice<>(chainIndex, 0L);
+        this.ledger = new Ledger(chainIndex);
         this.longestChainHead = null;
-        this.blockToVerify = null;
-        this.toVerifyMeta = null;
+        this.pipeline = new BlockPipeline(NodeRunner.STAKE_PIPELINE, NodeRunner.STAKE_TERM_BLOCKS);
+        this.verifiedStates = new LinkedHashMap<>();
         this.remoteNodes = remoteNodes;
         this.awaitingReplies = new HashMap<>();
-        this.openClients = new ArrayList<>();
-        this.server = new Server(port);
+        this.replyTimers = new HashMap<>();
+        this.mempool = new Mempool(NodeRunner.MEMPOOL_SIZE, NodeRunner.MEMPOOL_MAX_AGE);
+        this.api = new NodeApi(this);
+        this.gossip = new Gossip(name, remoteNodes.keySet(), NodeRunner.GOSSIP_FANOUT);
+        this.orphans = new OrphanPool<>(ChainSync.ORPHAN_POOL_SIZE, ChainSync.ORPHAN_MAX_AGE);
+        this.sync = new ChainSync();
+        this.apiPort = -1;
+        this.gson = new Gson();
+        this.events = new EventQueue();
+        this.transport = transport;
+        this.transport.attach(name, events);
         this.publicKeys = new HashMap<>();
+        this.signatureCache = new SignatureCache();
 
-        this.timer = new ElectionTimer();
+        this.timers = new TimerService(events);
         this.MAJORITY = (int) Math.ceil(remoteNodes.size() / 2.0) + (remoteNodes.size() % 2 == 0 ? 1 : 0);
         this.term = 0;
         this.voteCount = 0;
         this.state = FOLLOW;
         this.votedFor = null;
         this.blockMeta = new HashMap<>();
+        this.creatorTally = new CreatorTally(NodeRunner.STAKE_WINDOW, chainIndex, hash -> blockMeta.get(hash).getCreator());
+
+        if (storeDirectory != null) {
+            try {
+                this.blockStore = new BlockStore(storeDirectory, NodeRunner.FSYNC_POLICY);
+            } catch (IOException e) {
+                //running on without the blocks already saved would quietly throw them away, so don't start at all
+                System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): Could not open block store " + storeDirectory + ", not starting" + Colors.ANSI_RESET);
+                throw new IllegalStateException("could not open block store " + storeDirectory, e);
+            }
+        }
+        loadFromStore();
 
         try {
-            this.keyGenerator = new KeyGenerator(1024);
-            publicKeys.put(this.name, keyGenerator.getPublicKey());
+            this.signer = new Signer();
+            publicKeys.put(this.name, signer.getPublicKey());
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
-        } catch (NoSuchProviderException e) {
-            e.printStackTrace();
-        }
-        try {
-            this.encryptDecrypt = new EncryptDecrypt(keyGenerator.getPublicKey(), keyGenerator.getPrivateKey());
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (NoSuchPaddingException e) {
-            e.printStackTrace();
         }
     }
 
+    public int getHeadNumber() { return longestChainHead == null ? 0 : longestChainHead.getNumber(); }
+
+    public String getHeadHash() { return longestChainHead == null ? Block.FIRST_HASH : longestChainHead.getHash(); }
+
     public void startServer() {
-        this.server.start();
+        this.transport.start();
+        if (apiPort >= 0) this.api.start(apiPort);
     }
 
     public void run() {
         sendAllPublicKeys();
 
-        this.timer.start();
-        MessageHolder nextHolder;
-        long lastHeartbeat = System.nanoTime();
+        resetElectionTimer();
+
+        //catch up with whatever the others made while this node was away
+        List<String> syncPeers = gossip.pickPeers(null);
+        for (String remote : syncPeers.subList(0, Math.min(ChainSync.START_PEERS, syncPeers.size()))) requestHeaders(remote, null);
 
         while (true) {
-            if (this.state.equals(CANDID) && this.voteCount >= MAJORITY) {
-                becomeLeader();
-
-                //if we already had a block to verify since the last time we were a leader, double check whether it's valid
-                //if it's not a valid block, discard it and start a new one; otherwise, keep waiting on it
-                if (this.blockToVerify != null && !verifyStakeBlock(blockToVerify)) {
-                    System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): Block " + blockToVerify.getNumber() + " [..." + blockToVerify.getHash().substring(57) + "] with previous block ..." + blockToVerify.getPrevious().substring(57) + " did not get signatures and was invalid; discarding" + Colors.ANSI_RESET);
-                    blockToVerify = null;
-                    toVerifyMeta = null;
-                }
+            if (this.state.equals(CANDID) && this.voteCount >= MAJORITY) becomeLeader();
 
-                if (this.blockToVerify == null) createNextBlock();
+            //proposals built on a head that has moved on since won't make it
+            if (!pipeline.isEmpty() && !pipeline.getBase().equals(getHeadHash())) {
+                dropProposals("the head moved to block ..." + getHeadHash().substring(57));
             }
 
-            if (this.state.equals(LEADER) && ((System.nanoTime() - lastHeartbeat) / 1000000) >= HEARTBEAT_TIME)
-            {
-                sendHeartbeat();
-                lastHeartbeat = System.nanoTime();
+            //proposals go into the chain in order, each as soon as it and every one before it has enough stake
+            while (!pipeline.isEmpty() && hasEnoughStake(pipeline.getFirst().getBlock())) {
+                BlockPipeline.Proposal proposal = pipeline.removeFirst();
+                StakeBlock block = proposal.getBlock();
+                //add finalSignature
+                block.setFinalSignature(signer.sign(finalSignedData(block.getHash(), proposal.getMeta())));
+
+                if (addBlock(block, proposal.getMeta())) {
+                    announceBlock(block, null);
+                }
+                else {
+                    dropProposals("block " + block.getNumber() + " could not be added");
+                }
             }
 
-            nextHolder = this.server.getNextReadyHolder();
-            while (nextHolder != null) {
-                deliverMessage(nextHolder.getMessage());
-                nextHolder = this.server.getNextReadyHolder();
+            //keep proposing while leading, up to NodeRunner.STAKE_PIPELINE blocks waiting for signatures and
+            //NodeRunner.STAKE_TERM_BLOCKS in the term, as long as this node's share of the chain with the blocks before it
+            //stays under PROBABILITY, same as verifiers check
+            while (this.state.equals(LEADER) && pipeline.canPropose() && creatorTally.getProportion(this.name, pipeline.size()) < PROBABILITY) {
+                createNextBlock();
             }
 
-            if (this.blockToVerify != null && hasEnoughStake(this.blockToVerify)) {
-                //add finalSignature
-                String finalSignature = this.encryptDecrypt.encryptMessage(this.blockToVerify.getHash(), this.keyGenerator.getPrivateKey());
-                blockToVerify.setFinalSignature(finalSignature);
+            //sleep until something happens, timers included; only a download in progress needs waking up regularly
+            long timeout = sync.isActive() ? ChainSync.TICK : -1;
 
-                addBlock(blockToVerify, toVerifyMeta);
-                sendAddBlock(blockToVerify, toVerifyMeta);
-                blockToVerify = null;
-                toVerifyMeta = null;
+            EventQueue.Event event;
+            try {
+                event = events.take(timeout);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
             }
+            if (event != null) handleEvent(event);
+            if (sync.isActive()) sendBlockRequests();
+        }
+    }
 
-            if (((System.nanoTime() - this.blockPeriodStart) / 1000000) >= BLOCK_PERIOD && this.state.equals(LEADER)) {
+    //a timer that was cancelled or re-armed can still go off once, so timer events only count if they're from the timer
+    //that is armed now
+    private void handleEvent(EventQueue.Event event) {
+        if (event.getType().equals(EventQueue.MESSAGE)) {
+            deliverMessage((Message) event.getPayload());
+        }
+        else if (event.getType().equals(EventQueue.SEND_FAILED)) {
+            cleanUpFailedMessage((Message) event.getPayload());
+        }
+        else if (event.getType().equals(EventQueue.TIMER_EXPIRED)) {
+            if (event.getPayload() == electionTimer && !this.state.equals(LEADER)) startElection();
+        }
+        else if (event.getType().equals(EventQueue.HEARTBEAT_DUE)) {
+            if (event.getPayload() == heartbeatTimer && this.state.equals(LEADER)) {
+                sendHeartbeat();
+                heartbeatTimer = timers.schedule(EventQueue.HEARTBEAT_DUE, null, HEARTBEAT_TIME);
+            }
+        }
+        else if (event.getType().equals(EventQueue.BLOCK_PERIOD_OVER)) {
+            if (event.getPayload() == blockPeriodTimer && this.state.equals(LEADER)) {
                 System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): current block period has expired... " + Colors.ANSI_RESET);
-                this.timer.reset();
                 //stop sending heartbeats and allow timers to expire if it's time to make another block
+                TimerService.cancel(heartbeatTimer);
+                resetElectionTimer();
                 this.state = FOLLOW;
             }
-            if (this.timer.isExpired() && !this.state.equals(LEADER)) startElection();
-
-            cleanClients();
         }
+        else if (event.getType().equals(EventQueue.PROPOSAL_EXPIRED)) {
+            TimerService.Timer expired = (TimerService.Timer) event.getPayload();
+            BlockPipeline.Proposal proposal = pipeline.get((String) expired.getPayload());
+            //the ones before it went earlier, so this is the oldest proposal
+            if (proposal != null && proposal.getTimeout() == expired) {
+                dropProposals("not enough verifier stake after " + VERIFY_TIMEOUT + " ms");
+            }
+        }
+        else if (event.getType().equals(EventQueue.REPLY_TIMEOUT)) {
+            TimerService.Timer expired = (TimerService.Timer) event.getPayload();
+            if (replyTimers.get((UUID) expired.getPayload()) == expired) {
+                replyTimers.remove((UUID) expired.getPayload());
+                Message message = awaitingReplies.remove((UUID) expired.getPayload());
+                System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): No reply to message [" + message.getGuid() + "] from node " + message.getDestination() + " after " + REPLY_TIMEOUT + " ms, giving up on it" + Colors.ANSI_RESET);
+            }
+        }
+    }
+
+    //(re)start the election timeout; each node picks a random one every time so they don't all stand at once
+    private void resetElectionTimer() {
+        TimerService.cancel(electionTimer);
+        electionTimer = timers.schedule(EventQueue.TIMER_EXPIRED, null, ThreadLocalRandom.current().nextInt(MIN_ELECTION_TIMEOUT, MAX_ELECTION_TIMEOUT + 1));
     }
 
     private void startElection() {
         //check if this node will exceed P if it makes the next block
         //also only randomly decide whether we want to make the next block
-        Random rand = new Random();
-        int myProportion = getChainProportion(this.name), myRand = rand.nextInt(100) + 1;
+        int myProportion = getChainProportion(this.name), myRand = ThreadLocalRandom.current().nextInt(100) + 1;
 
         if (myProportion <= PROBABILITY && myRand <= PROBABILITY) {
             // switch to candidate state
@@ -156,7 +260,7 @@ public class StakeNode implements NodeInter {
             // set voted for to the candidate id
             this.votedFor = name;
             // reset the term timer
-            this.timer.reset();
+            resetElectionTimer();
 
             //send a requestVote to all other nodes
             for (String remoteNode : this.remoteNodes.keySet()) {
@@ -165,13 +269,10 @@ public class StakeNode implements NodeInter {
             }
         }
         else {
-            this.timer.reset();
+            resetElectionTimer();
             if (myProportion > PROBABILITY) {
                 System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): declined to start election because I made too many blocks" + Colors.ANSI_RESET);
-                System.out.println(myProportion);
-                for (Map.Entry<String, BlockMeta> curEntry : blockMeta.entrySet()) {
-                    System.out.println(curEntry.getKey().substring(57) + " - " + curEntry.getValue().getCreator());
-                }
+                System.out.println(myProportion + "% of " + creatorTally.getTotal() + " blocks, made by " + creatorTally.getCounts());
             }
             else {
                 System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): declined to start election because of my random value" + Colors.ANSI_RESET);
@@ -182,80 +283,97 @@ public class StakeNode implements NodeInter {
     private void becomeLeader() {
         if (this.state.equals(CANDID)) {
             this.state = LEADER;
+            pipeline.startTerm();
 
             System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): became the leader in term " + term + "!!" + Colors.ANSI_RESET);
-            blockPeriodStart = System.nanoTime();
+            //a leader doesn't stand for election, it steps down when its block period is over
+            TimerService.cancel(electionTimer);
             sendHeartbeat();
+            TimerService.cancel(heartbeatTimer);
+            TimerService.cancel(blockPeriodTimer);
+            heartbeatTimer = timers.schedule(EventQueue.HEARTBEAT_DUE, null, HEARTBEAT_TIME);
+            blockPeriodTimer = timers.schedule(EventQueue.BLOCK_PERIOD_OVER, null, BLOCK_PERIOD);
         }
         else {
             System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): was trying to become leader but found a new leader" + Colors.ANSI_RESET);
         }
     }
 
+    //the next block goes on top of the last proposal still waiting for signatures, or on the head if there is none
     private void createNextBlock() {
         StakeBlock newBlock;
+        BlockPipeline.Proposal last = pipeline.getLast();
+        String previous = last == null ? getHeadHash() : last.getBlock().getHash();
+        int newNumber = last == null ? getHeadNumber() + 1 : last.getBlock().getNumber() + 1;
+        HashMap<String, Integer> chainState = last == null ? computeStakeChainState(previous) : new HashMap<>(last.getStateAfter());
 
         //(int number, String stakePerson, int stakeAmount) {
-        if (longestChainHead == null) {
+        if (newNumber == 1) {
             newBlock = new StakeBlock(1, this.name, StakeBlock.BASE_REWARD, Block.FIRST_HASH);
             newBlock.setTransactions(new Transaction[0]);
         } else {
-            int newNumber = this.longestChainHead.getNumber() + 1;
-            HashMap<String, Integer> chainState = computeStakeChainState(this.longestChainHead);
             System.out.println("    Starting state of next block " + newNumber + ": " + chainState);
 
-            GenerateTransaction transactionGenerator = new GenerateTransaction(chainState);
-            Transaction[] newTrans = transactionGenerator.generateTransaction();
+            submitGeneratedTransactions(chainState);
+            //the proposals before this one still have their transactions in the mempool until they're added
+            Transaction[] newTrans = mempool.select(chainState, NodeRunner.MAX_BLOCK_TRANSACTIONS, pipeline.getTransactionIds());
 
             int txnTotal = 0;
             for (Transaction curTxn : newTrans) {
                 if (curTxn != null) txnTotal += curTxn.getAmount();
             }
 
-            newBlock = new StakeBlock(newNumber, this.name, txnTotal / 2, this.longestChainHead.getHash());
+            newBlock = new StakeBlock(newNumber, this.name, txnTotal / 2, previous);
             newBlock.setTransactions(newTrans);
 
-            System.out.println("    Transactions for next block " + newBlock.getNumber() + ": " + Arrays.toString(newTrans));
+            System.out.println("    " + newTrans.length + " transactions for next block " + newBlock.getNumber() + ", " + mempool.size() + " waiting in the mempool");
         }
 
-        System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Generated block " + newBlock.getNumber() + " with previous block ..." + newBlock.getPrevious().substring(57) + Colors.ANSI_RESET);
+        System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Generated block " + newBlock.getNumber() + " with previous block ..." + newBlock.getPrevious().substring(57) + ", " + (pipeline.size() + 1) + " blocks waiting for signatures" + Colors.ANSI_RESET);
 
         newBlock.makeBlockHash();
-        this.blockToVerify = newBlock;
-        this.verifyCount = 0;
-        this.toVerifyMeta = new BlockMeta(this.term, this.name);
-        sendVerifyBlock(newBlock);
+        Ledger.applyBlock(chainState, newBlock.getCredits(), newBlock.getTransactions());
+        List<String> verifiers = last == null ? gossip.pickPeers(null) : last.getVerifiers();
+        pipeline.add(newBlock, new BlockMeta(this.term, this.name), chainState, verifiers, timers.schedule(EventQueue.PROPOSAL_EXPIRED, newBlock.getHash(), VERIFY_TIMEOUT));
+        sendVerifyBlock(newBlock, verifiers);
     }
 
-    private void sendVerifyBlock(StakeBlock block) {
-        Gson gson = new Gson();
+    //a proposal that fails takes every one after it down too, they all build on it; their transactions never left the mempool
+    private void dropProposals(String reason) {
+        List<BlockPipeline.Proposal> dropped = pipeline.clear();
+        if (dropped.isEmpty()) return;
+        System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): Dropping " + dropped.size() + " proposed blocks from block " + dropped.get(0).getBlock().getNumber() + " on: " + reason + Colors.ANSI_RESET);
+    }
+
+    private void sendVerifyBlock(StakeBlock block, List<String> verifiers) {
         JsonObject verifyInfo = new JsonObject();
 
         verifyInfo.addProperty(LEADER_TERM, this.term);
         verifyInfo.addProperty(LEADER_ID, this.name);
-        verifyInfo.add(BLOCK_ELE, gson.toJsonTree(block));
 
-        for (String remote : remoteNodes.keySet()) {
-            if (!remote.equals(this.name)) {
-                Message blockMessage = new Message(this.name, remote, Message.BLOCK_VERIFY_TYPE, verifyInfo.toString());
+        //a block only needs enough verifiers to cover its transactions, not all of them, so ask a random few
+        for (String remote : verifiers) {
+            Message blockMessage = new Message(this.name, remote, Message.BLOCK_VERIFY_TYPE, verifyInfo.toString());
+            blockMessage.setStakeBlock(block);
 
-                System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Sending block verify message [" + blockMessage.getGuid() + "] to node " + remote + Colors.ANSI_RESET);
-                System.out.println(Colors.ANSI_CYAN + "     " + blockMessage.getPayload() + Colors.ANSI_RESET);
+            System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Sending block verify message [" + blockMessage.getGuid() + "] to node " + remote + Colors.ANSI_RESET);
+            System.out.println(Colors.ANSI_CYAN + "     " + blockMessage.getPayload() + Colors.ANSI_RESET);
 
-                sendMessage(remote, blockMessage, true);
-            }
+            sendMessage(remote, blockMessage, true);
         }
     }
 
     private void processVerifyBlockMessage(Message message) {
         JsonObject responseJson = new JsonObject();
         JsonObject payloadJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
-
-        Gson gson = new Gson();
-        StakeBlock newBlock = gson.fromJson(payloadJson.get(BLOCK_ELE), StakeBlock.class);
+        StakeBlock newBlock = message.getStakeBlock();
+        if (newBlock == null) {
+            System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): Block verify message [" + message.getGuid() + "] from node " + message.getSender() + " has no block; ignoring" + Colors.ANSI_RESET);
+            return;
+        }
 
         if (payloadJson.get(LEADER_TERM).getAsInt() >= this.term) {
-            this.timer.reset();
+            resetElectionTimer();
 
             if (!this.state.equals(FOLLOW)) {
                 System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): switching to follower, new term " + payloadJson.get(LEADER_TERM).getAsInt() + " from node " + message.getSender() + " greater than my term " + this.term + Colors.ANSI_RESET);
@@ -275,6 +393,7 @@ public class StakeNode implements NodeInter {
         }
         else if (verifyStakeBlock(newBlock)) {
             responseJson.addProperty("result", true);
+            rememberVerifiedState(newBlock);
         }
         else {
             System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): New block " + newBlock.getNumber() + " [..." + newBlock.getHash().substring(57) + "] with previous block ..." + newBlock.getPrevious().substring(57) + " was not valid (double spending); rejecting!" + Colors.ANSI_RESET);
@@ -284,8 +403,7 @@ public class StakeNode implements NodeInter {
         responseJson.addProperty("originalMessageId", message.getGuid().toString());
         responseJson.addProperty("verifiedBlock", newBlock.getHash());
 
-        String verifySignature = this.encryptDecrypt.encryptMessage(newBlock.getHash(), this.keyGenerator.getPrivateKey());
-        responseJson.addProperty("verifySignature", verifySignature);
+        responseJson.addProperty("verifySignature", signer.sign(newBlock.getHash()));
 
         Message response = new Message(this.name, message.getSender(), Message.REPLY_TYPE, responseJson.toString());
         sendMessage(message.getSender(), response, false);
@@ -293,55 +411,142 @@ public class StakeNode implements NodeInter {
 
     private void processVerifyBlockReply(Message message) {
         JsonObject replyJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
-        if (blockToVerify != null && replyJson.get("result").getAsBoolean() && replyJson.get("verifiedBlock").getAsString().equals(this.blockToVerify.getHash())) {
+        BlockPipeline.Proposal proposal = pipeline.get(replyJson.get("verifiedBlock").getAsString());
+        if (proposal != null && replyJson.get("result").getAsBoolean()) {
+            StakeBlock blockToVerify = proposal.getBlock();
 
             if (publicKeys.containsKey(message.getSender())) {
-                //decrypt verifier signature with creator's public key
-                //check that it equals block hash
-                String signatureDecrypt = encryptDecrypt.decryptMessage(replyJson.get("verifySignature").getAsString(), publicKeys.get(message.getSender()));
-                if (!this.blockToVerify.getHash().equals(signatureDecrypt)) {
-                    System.out.println(Colors.ANSI_RED + ">>>StakeNode (" + Thread.currentThread().getName() + "): BLOCK FINAL SIGNATURE DIDN'T MATCH" + Colors.ANSI_RESET);
+                //check the verifier's signature of the block hash with the verifier's public key
+                if (!signatureCache.verify(message.getSender(), blockToVerify.getHash(), replyJson.get("verifySignature").getAsString(), publicKeys.get(message.getSender()))) {
+                    System.out.println(Colors.ANSI_RED + ">>>StakeNode (" + Thread.currentThread().getName() + "): VERIFIER SIGNATURE FROM NODE " + message.getSender() + " DIDN'T MATCH" + Colors.ANSI_RESET);
                 }
                 else {
-                    this.blockToVerify.getVerifiers().put(message.getSender(), replyJson.get("verifySignature").getAsString());
+                    blockToVerify.getVerifiers().put(message.getSender(), replyJson.get("verifySignature").getAsString());
                 }
             }
             else {
-                this.blockToVerify.getVerifiers().put(message.getSender(), replyJson.get("verifySignature").getAsString());
+                blockToVerify.getVerifiers().put(message.getSender(), replyJson.get("verifySignature").getAsString());
             }
         }
     }
 
-    private void sendAddBlock(StakeBlock block, BlockMeta blockMeta) {
-        Gson gson = new Gson();
-        JsonObject blockInfo = new JsonObject();
+    //tell a few random peers we have the block, the ones that don't have it yet will ask for it
+    private void announceBlock(StakeBlock block, String except) {
+        JsonObject invJson = new JsonObject();
+        invJson.addProperty(Gossip.HASH, block.getHash());
+
+        for (String remote : gossip.pickPeers(except)) {
+            Message invMessage = new Message(this.name, remote, Message.INV_TYPE, invJson.toString());
+            System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Announcing block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] to node " + remote + Colors.ANSI_RESET);
+            sendMessage(remote, invMessage, false);
+        }
+    }
 
-        blockInfo.addProperty(LEADER_TERM, this.term);
-        blockInfo.addProperty(LEADER_ID, this.name);
-        blockInfo.add(BLOCK_ELE, gson.toJsonTree(block));
-        blockInfo.add(BLOCK_META_ELE, gson.toJsonTree(blockMeta));
+    private void requestBlock(String hash, String remote) {
+        if (!gossip.startRequest(hash)) return;
 
-        for (String remote : remoteNodes.keySet()) {
-            if (!remote.equals(this.name)) {
-                Message blockMessage = new Message(this.name, remote, Message.BLOCK_TYPE, blockInfo.toString());
+        sendGetData(remote, Collections.singletonList(hash));
+    }
 
-                System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Sending block message [" + blockMessage.getGuid() + "] to node " + remote + Colors.ANSI_RESET);
-                System.out.println(Colors.ANSI_CYAN + "     " + blockMessage.getPayload() + Colors.ANSI_RESET);
+    private void sendGetData(String remote, List<String> hashes) {
+        JsonObject getDataJson = new JsonObject();
+        getDataJson.add(ChainSync.HASHES, gson.toJsonTree(hashes));
+        sendMessage(remote, new Message(this.name, remote, Message.GET_DATA_TYPE, getDataJson.toString()), false);
+    }
+
+    //ask a peer which blocks on its chain come after the last one we have in common; after is the last hash of a
+    //previous reply from that peer when we're asking for the next part of a long chain
+    private void requestHeaders(String remote, String after) {
+        if (!sync.startHeaderRequest(remote)) return;
+
+        List<String> locator = chainIndex.getLocator(getHeadHash());
+        if (after != null) locator.add(0, after);
+
+        JsonObject getHeadersJson = new JsonObject();
+        getHeadersJson.add(ChainSync.LOCATOR, gson.toJsonTree(locator));
+        System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Asking node " + remote + " for blocks after " + (after == null ? "my head" : "..." + after.substring(57)) + Colors.ANSI_RESET);
+        sendMessage(remote, new Message(this.name, remote, Message.GET_HEADERS_TYPE, getHeadersJson.toString()), false);
+    }
 
-                sendMessage(remote, blockMessage, false);
+    private void sendBlockRequests() {
+        for (Map.Entry<String, List<String>> curRequest : sync.nextRequests().entrySet()) {
+            sendGetData(curRequest.getKey(), curRequest.getValue());
+        }
+    }
+
+    private void processInvMessage(Message message) {
+        String hash = new JsonParser().parse(message.getPayload()).getAsJsonObject().get(Gossip.HASH).getAsString();
+        if (!blockChain.containsKey(hash) && !orphans.contains(hash) && !sync.isPending(hash)) requestBlock(hash, message.getSender());
+    }
+
+    //each block goes out with the term and leader it was made under, whoever passes it on
+    private void processGetDataMessage(Message message) {
+        JsonArray hashes = new JsonParser().parse(message.getPayload()).getAsJsonObject().get(ChainSync.HASHES).getAsJsonArray();
+        for (JsonElement curHash : hashes) {
+            StakeBlock block = blockChain.get(curHash.getAsString());
+            BlockMeta meta = blockMeta.get(curHash.getAsString());
+            if (block == null || meta == null) continue;
+
+            JsonObject blockInfo = new JsonObject();
+            blockInfo.addProperty(LEADER_TERM, meta.getCreateTerm());
+            blockInfo.addProperty(LEADER_ID, meta.getCreator());
+
+            Message blockMessage = new Message(this.name, message.getSender(), Message.BLOCK_TYPE, blockInfo.toString());
+            blockMessage.setStakeBlock(block);
+            blockMessage.setBlockMeta(meta);
+            System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Sending block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] to node " + message.getSender() + Colors.ANSI_RESET);
+            sendMessage(message.getSender(), blockMessage, false);
+        }
+    }
+
+    //answer with the hashes on my chain after the first locator entry that is on it, up to MAX_HEADERS of them
+    private void processGetHeadersMessage(Message message) {
+        JsonArray locator = new JsonParser().parse(message.getPayload()).getAsJsonObject().get(ChainSync.LOCATOR).getAsJsonArray();
+        String head = getHeadHash(), fork = Block.FIRST_HASH;
+        for (JsonElement curHash : locator) {
+            if (chainIndex.isAncestor(curHash.getAsString(), head)) {
+                fork = curHash.getAsString();
+                break;
             }
         }
+
+        int headHeight = chainIndex.getHeight(head), endHeight = Math.min(headHeight, chainIndex.getHeight(fork) + ChainSync.MAX_HEADERS);
+        JsonObject headersJson = new JsonObject();
+        headersJson.add(ChainSync.HASHES, gson.toJsonTree(chainIndex.getPath(fork, chainIndex.getAncestor(head, endHeight))));
+        headersJson.addProperty(ChainSync.MORE, endHeight < headHeight);
+        sendMessage(message.getSender(), new Message(this.name, message.getSender(), Message.HEADERS_TYPE, headersJson.toString()), false);
+    }
+
+    private void processHeadersMessage(Message message) {
+        sync.finishHeaderRequest(message.getSender());
+        JsonObject headersJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
+        JsonArray hashes = headersJson.get(ChainSync.HASHES).getAsJsonArray();
+
+        List<String> missing = new ArrayList<>();
+        for (JsonElement curHash : hashes) {
+            if (!blockChain.containsKey(curHash.getAsString()) && !orphans.contains(curHash.getAsString())) missing.add(curHash.getAsString());
+        }
+        System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Node " + message.getSender() + " has " + missing.size() + " blocks I don't" + Colors.ANSI_RESET);
+        sync.addHeaders(missing, message.getSender());
+
+        //a long chain comes in parts, ask for the next one straight away so headers stay ahead of the downloads
+        if (headersJson.get(ChainSync.MORE).getAsBoolean() && hashes.size() > 0) {
+            requestHeaders(message.getSender(), hashes.get(hashes.size() - 1).getAsString());
+        }
+        sendBlockRequests();
     }
 
     private void processAddBlockMessage(Message message) {
         JsonObject payloadJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
-
-        Gson gson = new Gson();
-        StakeBlock newBlock = gson.fromJson(payloadJson.get(BLOCK_ELE), StakeBlock.class);
-        BlockMeta newMeta = gson.fromJson(payloadJson.get(BLOCK_META_ELE), BlockMeta.class);
+        StakeBlock newBlock = message.getStakeBlock();
+        BlockMeta newMeta = message.getBlockMeta();
+        if (newBlock == null || newMeta == null) {
+            System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): Block message [" + message.getGuid() + "] from node " + message.getSender() + " has no block; ignoring" + Colors.ANSI_RESET);
+            return;
+        }
 
         if (payloadJson.get(LEADER_TERM).getAsInt() >= this.term) {
-            this.timer.reset();
+            resetElectionTimer();
 
             if (!this.state.equals(FOLLOW)) {
                 System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): switching to follower, new term " + payloadJson.get(LEADER_TERM).getAsInt() + " from node " + message.getSender() + " greater than my term " + this.term + Colors.ANSI_RESET);
@@ -354,7 +559,34 @@ public class StakeNode implements NodeInter {
             }
         }
 
-        addBlock(newBlock, newMeta);
+        gossip.finishRequest(newBlock.getHash());
+        boolean downloaded = sync.received(newBlock.getHash());
+        if (blockChain.containsKey(newBlock.getHash()) || orphans.contains(newBlock.getHash())) return;
+
+        //we're missing blocks before this one; unless a download is already filling the gap, ask whoever sent it
+        if (!chainIndex.contains(newBlock.getPrevious())) {
+            orphans.add(newBlock.getHash(), newBlock.getPrevious(), message);
+            if (!sync.isActive()) requestHeaders(message.getSender(), null);
+            return;
+        }
+
+        //adding a block can complete blocks that were waiting for it
+        String oldHead = getHeadHash();
+        boolean added = false;
+        ArrayDeque<Message> toAdd = new ArrayDeque<>();
+        toAdd.add(message);
+        while (!toAdd.isEmpty()) {
+            Message curMessage = toAdd.poll();
+            StakeBlock curBlock = curMessage.getStakeBlock();
+            if (!blockChain.containsKey(curBlock.getHash()) && addBlock(curBlock, curMessage.getBlockMeta())) {
+                if (curBlock == newBlock) added = true;
+                toAdd.addAll(orphans.removeChildren(curBlock.getHash()));
+            }
+        }
+
+        //pass on new blocks, but not history we downloaded (the others have it) and only the end of a completed run
+        if (added && !downloaded) announceBlock(newBlock, message.getSender());
+        if (!getHeadHash().equals(oldHead) && longestChainHead != newBlock) announceBlock(longestChainHead, message.getSender());
     }
 
     private void sendHeartbeat() {
@@ -362,18 +594,26 @@ public class StakeNode implements NodeInter {
         heartbeatInfo.addProperty(LEADER_TERM, this.term);
         heartbeatInfo.addProperty(LEADER_ID, this.name);
 
-        for (String remoteNode : remoteNodes.keySet()) {
-            if (remoteNode.equals(name)) continue;
-            Message message = new Message(this.name, remoteNode, Message.HEARTBEAT_TYPE, heartbeatInfo.toString());
-            sendMessage(remoteNode, message, false);
+        relayHeartbeat(UUID.randomUUID(), heartbeatInfo.toString(), null);
+    }
+
+    //heartbeats are gossiped, every node passes each one on once; they all keep the leader's guid so copies can be told apart
+    private void relayHeartbeat(UUID guid, String payload, String except) {
+        gossip.firstSeen(guid);
+        for (String remoteNode : gossip.pickPeers(except)) {
+            sendMessage(remoteNode, new Message(guid, this.name, remoteNode, Message.HEARTBEAT_TYPE, payload), false);
         }
     }
 
     private void processHeartbeatMessage(Message message) {
+        if (!gossip.firstSeen(message.getGuid())) return;
+
         JsonObject payloadJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
 
+        //only a heartbeat we accept is passed on, a stale one from an old leader stops here
         if (payloadJson.get(LEADER_TERM).getAsInt() >= this.term) {
-            this.timer.reset();
+            relayHeartbeat(message.getGuid(), message.getPayload(), message.getSender());
+            resetElectionTimer();
 
             if (!this.state.equals(FOLLOW)) {
                 System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): switching to follower, new term " + payloadJson.get(LEADER_TERM).getAsInt() + " from node " + message.getSender() + " greater than my term " + this.term + Colors.ANSI_RESET);
@@ -416,7 +656,7 @@ public class StakeNode implements NodeInter {
         JsonObject payloadJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
 
         if (payloadJson.get(CANDIDATE_TERM).getAsInt() > term) {
-            this.timer.reset();
+            resetElectionTimer();
 
             if (!this.state.equals(FOLLOW)) {
                 System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): switching to follower, new term " + payloadJson.get(CANDIDATE_TERM).getAsInt() + " from node " + message.getSender() + " greater than my term " + term + Colors.ANSI_RESET);
@@ -478,42 +718,41 @@ public class StakeNode implements NodeInter {
     }
 
     private void sendAllPublicKeys() {
+        for (String remoteNode : this.remoteNodes.keySet()) {
+            if (remoteNode.equals(this.name)) continue;
+            sendPublicKey(remoteNode);
+        }
+    }
+
+    private void sendPublicKey(String remoteNode) {
         JsonObject publicKeyInfo = new JsonObject();
         //we need to get the public key as a base 64 encoded string
 
-        byte[] publicBytes = keyGenerator.getPublicKey().getEncoded();
-        String stringValue = Base64.getEncoder().encodeToString(publicBytes);
-        publicKeyInfo.addProperty("publicKey", stringValue);
+        publicKeyInfo.addProperty("publicKey", Signer.encodePublicKey(signer.getPublicKey()));
 
-        for (String remoteNode : this.remoteNodes.keySet()) {
-            if (remoteNode.equals(this.name)) continue;
-            Message message = new Message(this.name, remoteNode, Message.PUBLIC_KEY_TYPE, publicKeyInfo.toString());
-            sendMessage(remoteNode, message, false);
-        }
+        Message message = new Message(this.name, remoteNode, Message.PUBLIC_KEY_TYPE, publicKeyInfo.toString());
+        sendMessage(remoteNode, message, false);
     }
 
     private void processPublicKeyMessage(Message message) {
         JsonObject payloadJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
-        String keyString = payloadJson.get("publicKey").getAsString();
-
-        byte[] publicBytes = Base64.getDecoder().decode(keyString);
-        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(publicBytes);
-
+        //decoded once here, every signature check after that uses the PublicKey object
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            PublicKey pubKey = keyFactory.generatePublic(keySpec);
-            this.publicKeys.put(message.getSender(), pubKey);
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            PublicKey previous = this.publicKeys.put(message.getSender(), Signer.decodePublicKey(payloadJson.get("publicKey").getAsString()));
+            //a node that started after us never got our key, and blocks we make don't count there without it
+            if (previous == null) sendPublicKey(message.getSender());
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
             e.printStackTrace();
         }
     }
 
     private void sendMessage(String dest, Message message, boolean waitForReply) {
-        if (waitForReply) { this.awaitingReplies.put(message.getGuid(), message); }
+        if (waitForReply) {
+            this.awaitingReplies.put(message.getGuid(), message);
+            this.replyTimers.put(message.getGuid(), timers.schedule(EventQueue.REPLY_TIMEOUT, message.getGuid(), REPLY_TIMEOUT));
+        }
 
-        Client client = new Client(this.remoteNodes.get(dest).getAddress(), this.remoteNodes.get(dest).getPort(), message);
-        client.start();
-        this.openClients.add(client);
+        this.transport.send(message);
     }
 
     private void deliverMessage(Message message) {
@@ -524,8 +763,12 @@ public class StakeNode implements NodeInter {
             JsonObject msgJson = new JsonParser().parse(message.getPayload()).getAsJsonObject();
 
             UUID origId = UUID.fromString(msgJson.get("originalMessageId").getAsString());
-            Message origMessage = awaitingReplies.get(origId);
-            awaitingReplies.remove(origId);
+            Message origMessage = awaitingReplies.remove(origId);
+            TimerService.cancel(replyTimers.remove(origId));
+            if (origMessage == null) {
+                System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Reply for message [" + origId + "] came after I stopped waiting for it; ignoring" + Colors.ANSI_RESET);
+                return;
+            }
 
             System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Received reply for message [" + origMessage.getGuid() + "] to node " + origMessage.getDestination() + ", processing" + Colors.ANSI_RESET);
 
@@ -551,151 +794,212 @@ public class StakeNode implements NodeInter {
         else if (message.getType().equals(Message.PUBLIC_KEY_TYPE)) {
             processPublicKeyMessage(message);
         }
+        else if (message.getType().equals(Message.TRANSACTION_TYPE)) {
+            processTransactionMessage(message);
+        }
+        else if (message.getType().equals(Message.INV_TYPE)) {
+            processInvMessage(message);
+        }
+        else if (message.getType().equals(Message.GET_DATA_TYPE)) {
+            processGetDataMessage(message);
+        }
+        else if (message.getType().equals(Message.GET_HEADERS_TYPE)) {
+            processGetHeadersMessage(message);
+        }
+        else if (message.getType().equals(Message.HEADERS_TYPE)) {
+            processHeadersMessage(message);
+        }
     }
 
-    private void addBlock(StakeBlock block, BlockMeta blockMeta) {
-        if (publicKeys.containsKey(blockMeta.getCreator())) {
-            //decrypt final signature with creator's public key
-            //check that it equals block hash
-            String signatureDecrypt = encryptDecrypt.decryptMessage(block.getFinalSignature(), publicKeys.get(blockMeta.getCreator()));
-            if (!block.getHash().equals(signatureDecrypt)) {
-                System.out.println(Colors.ANSI_RED + ">>>StakeNode (" + Thread.currentThread().getName() + "): BLOCK FINAL SIGNATURE DIDN'T MATCH" + Colors.ANSI_RESET);
-            }
-        }
+    //add a transaction to this node's mempool and, if it's new here, gossip it on
+    //safe to call from other threads than the node loop
+    public String submitTransaction(Transaction transaction) {
+        return submitTransaction(transaction, UUID.randomUUID(), null);
+    }
 
-        System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): Adding new block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] with previous block ..." + block.getPrevious().substring(57) + Colors.ANSI_RESET);
-        this.blockChain.put(block.getHash(), block);
-        this.blockMeta.put(block.getHash(), blockMeta);
+    //the guid stays the same from node to node so copies coming round again are dropped before they're parsed
+    private String submitTransaction(Transaction transaction, UUID guid, String from) {
+        String result = mempool.submit(transaction);
 
-        if (this.longestChainHead == null || block.getNumber() > this.longestChainHead.getNumber()) {
-            System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): Updated head of my longest chain to block " + block.getNumber() + " [..." + block.getHash().substring(57) + "]" + Colors.ANSI_RESET);
-            this.longestChainHead = block;
+        if (result.equals(Mempool.ACCEPTED)) {
+            gossip.firstSeen(guid);
+            String transactionJson = gson.toJson(transaction);
+            for (String remote : gossip.pickPeers(from)) {
+                sendMessage(remote, new Message(guid, this.name, remote, Message.TRANSACTION_TYPE, transactionJson), false);
+            }
         }
+        return result;
+    }
 
+    private void processTransactionMessage(Message message) {
+        if (!gossip.firstSeen(message.getGuid())) return;
+
+        Transaction transaction;
         try {
-            writeToDisk();
-        } catch (IOException e) {
+            transaction = gson.fromJson(message.getPayload(), Transaction.class);
+        } catch (JsonSyntaxException e) {
             e.printStackTrace();
+            return;
+        }
+
+        String result = submitTransaction(transaction, message.getGuid(), message.getSender());
+        if (!result.equals(Mempool.ACCEPTED) && !result.equals(Mempool.DUPLICATE)) {
+            System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): Transaction from node " + message.getSender() + " was not added to the mempool: " + result + Colors.ANSI_RESET);
         }
     }
 
-    private HashMap<String, Integer> computeStakeChainState(StakeBlock stakeBlock) {
-        Stack<StakeBlock> totalChain = findStakeBlockChain(stakeBlock);
-        HashMap<String, Integer> chainState = new HashMap<>();
+    //the head moved: update who made the blocks on the head chain, drop everything that is now in the chain from the
+    //mempool (more than the new block's transactions when the head moved to another branch), give back what was only in
+    //the blocks left behind, and give the API a snapshot of the new head; the ledger gets to the new head's balances
+    //from the old ones through the same blocks
+    private void headChanged(String oldHead) {
+        String ancestor = chainIndex.findCommonAncestor(oldHead, getHeadHash());
+        List<String> disconnected = chainIndex.getPath(ancestor, oldHead), path = chainIndex.getPath(ancestor, getHeadHash());
+        if (!disconnected.isEmpty()) {
+            System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): Reorganized from block ..." + oldHead.substring(57) + ", " + disconnected.size() + " blocks left behind and " + path.size() + " added, tracking " + forkChoice.getTipCount() + " tips" + Colors.ANSI_RESET);
+        }
 
-        for (String curPerson : this.remoteNodes.keySet()) chainState.put(curPerson, 0);
+        creatorTally.moveHead(disconnected, path);
+        HashMap<String, Integer> headState = ledger.getState(getHeadHash());
+        mempool.setHeadState(headState);
+        for (String curHash : disconnected) {
+            mempool.returnDisconnected(blockChain.get(curHash).getTransactions());
+        }
+        for (String curHash : path) {
+            mempool.removeIncluded(blockChain.get(curHash).getTransactions());
+        }
+        api.publish(api.getSnapshot().advance(getHeadHash(), getHeadNumber(), headState, chainIndex.getHeight(ancestor), path));
+    }
 
-        while (!totalChain.isEmpty()) {
-            StakeBlock curBlock = totalChain.pop();
+    //the demo traffic that used to go straight into blocks now goes through the mempool like everything else
+    //every node makes up its own, so it isn't gossiped; that would cost N * fanout messages per made-up transaction
+    private void submitGeneratedTransactions(HashMap<String, Integer> chainState) {
+        GenerateTransaction transactionGenerator = new GenerateTransaction(new HashMap<>(chainState));
+        for (Transaction curTxn : transactionGenerator.generateTransaction()) {
+            if (curTxn != null) mempool.submit(curTxn);
+        }
+    }
 
-            String miner = curBlock.getStakePerson().getStake_person();
-            if (!chainState.containsKey(miner)) {
-                chainState.put(miner, 0);
-            }
-            chainState.put(miner, chainState.get(miner) + curBlock.getStakePerson().getStake_amount());
+    //returns true if the block was added
+    private boolean addBlock(StakeBlock block, BlockMeta blockMeta) {
+        //every verifier's signature is checked in one batch, against the keys we have; the ones already checked
+        //(the leader's own verifier replies, a block seen before) come from the cache
+        List<String> badSigners = signatureCache.verifyAll(block.getHash(), block.getVerifiers(), publicKeys);
+        if (!badSigners.isEmpty()) {
+            System.out.println(Colors.ANSI_RED + ">>>StakeNode (" + Thread.currentThread().getName() + "): BLOCK SIGNATURE FROM NODES " + badSigners + " DIDN'T MATCH, rejecting block " + block.getNumber() + " [..." + block.getHash().substring(57) + "]" + Colors.ANSI_RESET);
+            return false;
+        }
 
-            for (String curVerifier : curBlock.getVerifiers().keySet()) {
-                if (!chainState.containsKey(curVerifier)) {
-                    chainState.put(curVerifier, 0);
-                }
-                chainState.put(curVerifier, chainState.get(curVerifier) + curBlock.getReward());
-            }
+        //the term decides fork choice, so it only counts if the creator signed it (with the hash) and the block has the
+        //stake to go in; otherwise any peer could pass a block on with a higher term than it was made in
+        PublicKey creatorKey = publicKeys.get(blockMeta.getCreator());
+        if (creatorKey == null || block.getFinalSignature() == null
+                || !signatureCache.verify(blockMeta.getCreator(), finalSignedData(block.getHash(), blockMeta), block.getFinalSignature(), creatorKey)) {
+            System.out.println(Colors.ANSI_RED + ">>>StakeNode (" + Thread.currentThread().getName() + "): FINAL SIGNATURE FROM NODE " + blockMeta.getCreator() + " FOR TERM " + blockMeta.getCreateTerm() + " DIDN'T MATCH, rejecting block " + block.getNumber() + " [..." + block.getHash().substring(57) + "]" + Colors.ANSI_RESET);
+            return false;
+        }
+        if (!hasEnoughStake(block)) {
+            System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): New block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] doesn't have enough verified stake; rejecting!" + Colors.ANSI_RESET);
+            return false;
+        }
 
-            for (Transaction curTxn : curBlock.getTransactions()) {
-                if (curTxn != null) {
-                    String from = curTxn.getFrom(), to = curTxn.getTo();
+        if (!this.chainIndex.add(block.getHash(), block.getPrevious())
+                || !this.ledger.addBlock(block.getHash(), block.getCredits(), block.getTransactions())) {
+            System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): New block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] has unknown previous block ..." + block.getPrevious().substring(57) + "; rejecting!" + Colors.ANSI_RESET);
+            return false;
+        }
 
-                    if (!chainState.containsKey(from)) {
-                        chainState.put(from, 0);
-                    }
-                    if (!chainState.containsKey(to)) {
-                        chainState.put(to, 0);
-                    }
+        System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): Adding new block " + block.getNumber() + " [..." + block.getHash().substring(57) + "] with previous block ..." + block.getPrevious().substring(57) + " (signature cache: " + signatureCache.getHits() + " hits, " + signatureCache.getMisses() + " misses)" + Colors.ANSI_RESET);
+        this.blockChain.put(block.getHash(), block);
+        this.blockMeta.put(block.getHash(), blockMeta);
+        this.api.addBlock(block.getHash(), block);
 
-                    chainState.put(from, chainState.get(from) - curTxn.getAmount());
-                    chainState.put(to, chainState.get(to) + curTxn.getAmount());
-                }
-            }
+        if (this.forkChoice.add(block.getHash(), chainScore(block.getHash(), blockMeta))) {
+            System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): Updated head of my longest chain to block " + block.getNumber() + " [..." + block.getHash().substring(57) + "]" + Colors.ANSI_RESET);
+            String oldHead = getHeadHash();
+            this.longestChainHead = block;
+            headChanged(oldHead);
         }
 
-        return chainState;
+        saveBlock(block, blockMeta);
+        return true;
     }
 
-    public boolean verifyStakeBlock(StakeBlock stakeBlock) {
-        Stack<StakeBlock> totalChain = findStakeBlockChain(stakeBlock) ;
-        boolean isValid = true;
-        HashMap<String, Integer> chainState = new HashMap<>();
-
-        while (!totalChain.isEmpty() && isValid) {
-            StakeBlock curBlock = totalChain.pop();
+    //what the creator's final signature covers: the block and the term it was made in
+    private static String finalSignedData(String hash, BlockMeta meta) {
+        return hash + "|" + meta.getCreateTerm();
+    }
 
-            String miner = curBlock.getStakePerson().getStake_person();
-            if (!chainState.containsKey(miner)) {
-                chainState.put(miner, 0);
-            }
-            chainState.put(miner, chainState.get(miner) + curBlock.getStakePerson().getStake_amount());
+    //the term the block was made in, then its height, packed so comparing the longs compares the pairs in that order
+    //(the same order processReqVoteMessage uses to decide whether a candidate's chain is up to date)
+    private long chainScore(String hash, BlockMeta meta) {
+        return ((long) meta.getCreateTerm() << 32) | chainIndex.getHeight(hash);
+    }
 
-            for (String curVerifier : curBlock.getVerifiers().keySet()) {
-                if (!chainState.containsKey(curVerifier)) {
-                    chainState.put(curVerifier, 0);
-                }
-                chainState.put(curVerifier, chainState.get(curVerifier) + curBlock.getReward());
-            }
+    private HashMap<String, Integer> computeStakeChainState(String hash) {
+        HashMap<String, Integer> chainState = new HashMap<>();
 
-            for (Transaction curTxn : curBlock.getTransactions()) {
-                if (curTxn != null) {
-                    String from = curTxn.getFrom(), to = curTxn.getTo();
+        for (String curPerson : this.remoteNodes.keySet()) chainState.put(curPerson, 0);
+        chainState.putAll(ledger.getState(hash));
 
-                    if (!chainState.containsKey(from)) {
-                        chainState.put(from, 0);
-                    }
-                    if (!chainState.containsKey(to)) {
-                        chainState.put(to, 0);
-                    }
+        return chainState;
+    }
 
-                    chainState.put(from, chainState.get(from) - curTxn.getAmount());
-                    //This means that someone was "DOUBLE SPENDING" and ran out of money, so it's not a valid block
-                    if (chainState.get(from) < 0) isValid = false;
-                    chainState.put(to, chainState.get(to) + curTxn.getAmount());
-                }
-            }
+    public boolean verifyStakeBlock(StakeBlock stakeBlock) {
+        if (stakeBlock.getTransactions() == null || stakeBlock.getTransactions().length > NodeRunner.MAX_BLOCK_TRANSACTIONS) {
+            System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): Block " + stakeBlock.getNumber() + " has no transaction list or more than " + NodeRunner.MAX_BLOCK_TRANSACTIONS + " transactions" + Colors.ANSI_RESET);
+            return false;
         }
 
-        return isValid;
+        //everything before the previous block was checked when it was added, so only this block's transactions need checking;
+        //a leader's pipelined block can also build on one we verified that isn't in the chain yet
+        if (ledger.contains(stakeBlock.getPrevious())) {
+            String repeated = ledger.findRepeated(stakeBlock.getPrevious(), stakeBlock.getTransactions());
+            if (repeated != null) return rejectRepeated(stakeBlock, repeated);
+            return ledger.canApply(stakeBlock.getPrevious(), stakeBlock.getCredits(), stakeBlock.getTransactions());
+        }
+        VerifiedState previous = verifiedStates.get(stakeBlock.getPrevious());
+        if (previous == null || !ledger.contains(previous.ledgerBase)) return false;
+        String repeated = ledger.findRepeated(previous.ledgerBase, stakeBlock.getTransactions(), previous.transactionIds);
+        if (repeated != null) return rejectRepeated(stakeBlock, repeated);
+        return TransactionValidator.canApply(previous.state, stakeBlock.getCredits(), stakeBlock.getTransactions());
     }
 
-    private Stack<StakeBlock> findStakeBlockChain(StakeBlock startBlock) {
-        Stack<StakeBlock> chain = new Stack<StakeBlock>();
-        chain.push(startBlock);
-        return findStakeBlockChain(chain);
+    private boolean rejectRepeated(StakeBlock stakeBlock, String repeated) {
+        System.out.println(Colors.ANSI_RED + "StakeNode (" + Thread.currentThread().getName() + "): Block " + stakeBlock.getNumber() + " repeats transaction " + repeated + " that is already in the chain" + Colors.ANSI_RESET);
+        return false;
     }
 
-    private Stack<StakeBlock> findStakeBlockChain(Stack<StakeBlock> chain) {
-        StakeBlock lastBlock = chain.peek();
-        String hashForPrevious = lastBlock.getPrevious();
-
-        if (hashForPrevious.equals(StakeBlock.FIRST_HASH)) {
-            return chain;
-        }
-        else {
-            chain.push(blockChain.get(hashForPrevious));
-            return findStakeBlockChain(chain);
+    //keep the balances after a block we just verified, in case the leader's next block builds on it before it's added
+    //(without its verifier rewards, which only ever add coins, so they can't make the next block look better than it is)
+    private void rememberVerifiedState(StakeBlock stakeBlock) {
+        VerifiedState previous = verifiedStates.get(stakeBlock.getPrevious());
+        boolean onLedger = ledger.contains(stakeBlock.getPrevious());
+        HashMap<String, Integer> state = onLedger ? ledger.getState(stakeBlock.getPrevious()) : new HashMap<>(previous.state);
+        HashSet<String> transactionIds = onLedger ? new HashSet<>() : new HashSet<>(previous.transactionIds);
+        Ledger.applyBlock(state, stakeBlock.getCredits(), stakeBlock.getTransactions());
+        for (Transaction curTxn : stakeBlock.getTransactions()) {
+            if (curTxn != null && curTxn.getId() != null) transactionIds.add(curTxn.getId());
         }
+
+        verifiedStates.remove(stakeBlock.getHash());
+        verifiedStates.put(stakeBlock.getHash(), new VerifiedState(state, onLedger ? stakeBlock.getPrevious() : previous.ledgerBase, transactionIds));
+        if (verifiedStates.size() > MAX_VERIFIED_STATES) verifiedStates.remove(verifiedStates.keySet().iterator().next());
     }
 
+    //share of the blocks on the head chain (or its last NodeRunner.STAKE_WINDOW blocks) the node made, in percent
     private int getChainProportion(String node) {
-        double blockCount = 0;
-
-        for (Map.Entry<String, BlockMeta> curEntry : this.blockMeta.entrySet()) {
-            if (curEntry.getValue().getCreator().equals(node)) blockCount++;
-        }
-
-        if (blockMeta.size() > 0) return (int) (Math.ceil(blockCount * 100 / this.blockMeta.size()));
-        else return 0;
+        return creatorTally.getProportion(node);
     }
 
+    //only verifiers whose signature checks out against a key we have count towards the stake
     private boolean hasEnoughStake(StakeBlock block) {
-        if (block.getVerifiers().size() == 0) return false;
+        int verifiedCount = 0;
+        for (Map.Entry<String, String> curVerifier : block.getVerifiers().entrySet()) {
+            PublicKey key = publicKeys.get(curVerifier.getKey());
+            if (key != null && signatureCache.verify(curVerifier.getKey(), block.getHash(), curVerifier.getValue(), key)) verifiedCount++;
+        }
+        if (verifiedCount == 0) return false;
 
         int txnTotal = 0;
 
@@ -704,38 +1008,75 @@ public class StakeNode implements NodeInter {
         }
 
         int stakeTotal = block.getStakePerson().getStake_amount();
-        stakeTotal += block.getVerifiers().size() * (block.getReward());
+        stakeTotal += verifiedCount * (block.getReward());
 
         return stakeTotal >= txnTotal;
     }
 
-    private void cleanClients() {
-        ArrayList<Client> removeList = new ArrayList<>();
+    //a message the client couldn't deliver won't get a reply, stop waiting for it
+    private void cleanUpFailedMessage(Message message) {
+        System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Message [" + message.getGuid() + "] to node " + message.getDestination() + " could not be sent, cleaning up" + Colors.ANSI_RESET);
+        awaitingReplies.remove(message.getGuid());
+        TimerService.cancel(replyTimers.remove(message.getGuid()));
+    }
 
-        for (Client curClient : openClients) {
-            if (curClient.getMessageState().equals(Client.DONE)) {
-                System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Client for message [" + curClient.getMessage().getGuid() + "] to node " + curClient.getMessage().getDestination() + " is done, cleaning up" + Colors.ANSI_RESET);
-                removeList.add(curClient);
+    //rebuild the chain from the blocks saved by an earlier run, in the order they were accepted
+    //signatures can't be checked until peers send their public keys, but every hash and every balance is rechecked
+    //the term picks up from the newest block so this node doesn't vote or lead in a term it already took part in
+    private void loadFromStore() {
+        if (blockStore == null) return;
+
+        long start = System.nanoTime();
+        int restored = 0, rejected = 0;
+
+        for (String hash : blockStore.getHashes()) {
+            StakeBlock block = null;
+            BlockMeta meta = null;
+            try {
+                block = blockStore.readStakeBlock(hash);
+                meta = blockStore.readBlockMeta(hash);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            else if (curClient.getMessageState().equals(Client.EXCEPTION)) {
-                System.out.println(Colors.ANSI_CYAN + "StakeNode (" + Thread.currentThread().getName() + "): Client for message [" + curClient.getMessage().getGuid() + "] to node " + curClient.getMessage().getDestination() + " errored, cleaning up" + Colors.ANSI_RESET);
-                awaitingReplies.remove(curClient.getMessage().getGuid());
-                removeList.add(curClient);
+
+            if (block == null || meta == null || !hasValidHash(block) || !verifyStakeBlock(block)
+                    || !this.chainIndex.add(block.getHash(), block.getPrevious())) {
+                rejected++;
+                continue;
             }
+
+            this.ledger.addBlock(block.getHash(), block.getCredits(), block.getTransactions());
+            this.blockChain.put(block.getHash(), block);
+            this.api.addBlock(block.getHash(), block);
+            this.blockMeta.put(block.getHash(), meta);
+            if (this.forkChoice.add(block.getHash(), chainScore(block.getHash(), meta))) this.longestChainHead = block;
+            this.term = Math.max(this.term, meta.getCreateTerm());
+            restored++;
         }
 
-        openClients.removeAll(removeList);
+        if (longestChainHead != null) headChanged(Block.FIRST_HASH);
+
+        if (restored + rejected > 0) {
+            System.out.println(Colors.ANSI_YELLOW + "StakeNode (" + Thread.currentThread().getName() + "): Restored " + restored + " blocks from disk (" + rejected + " rejected) in " + (System.nanoTime() - start) / 1000000 + " ms, head is block " + (longestChainHead == null ? 0 : longestChainHead.getNumber()) + ", term " + term + Colors.ANSI_RESET);
+        }
+    }
+
+    private boolean hasValidHash(StakeBlock block) {
+        String storedHash = block.getHash();
+        block.makeBlockHash();
+        boolean matches = block.getHash().equals(storedHash);
+        block.setHash(storedHash);
+        return matches;
     }
 
-    private void writeToDisk() throws IOException {
-        JsonObject diskInfo = new JsonObject();
-        diskInfo.addProperty("node_name", this.name);
-        Gson gson = new Gson();
-        JsonObject chainJson = new JsonParser().parse(gson.toJson(blockChain)).getAsJsonObject();
-        diskInfo.add("block_chain", chainJson);
-        String fileName = "StakeNode_" + this.name + "_blockChain.json";
-        BufferedWriter writer = new BufferedWriter(new FileWriter(fileName));
-        writer.write(diskInfo.toString());
-        writer.close();
+    //only the new block is written, the store never rewrites what is already on disk
+    private void saveBlock(StakeBlock block, BlockMeta blockMeta) {
+        if (blockStore == null) return;
+
+        try {
+            blockStore.appendStakeBlock(block, blockMeta);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,37 @@
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+//the Server for incoming connections plus one Client per remote node, opened the first time we send to it
+//send can be called from any thread, e.g. an API thread passing on a submitted transaction
+public class TcpTransport implements Transport {
+    private final int port;
+    private final HashMap<String, RemoteNode> remoteNodes;
+    private final ConcurrentHashMap<String, Client> clients;
+    private EventQueue events;
+    private Server server;
+
+    public TcpTransport(int port, HashMap<String, RemoteNode> remoteNodes) {
+        this.port = port;
+        this.remoteNodes = remoteNodes;
+        this.clients = new ConcurrentHashMap<>();
+    }
+
+    public void attach(String name, EventQueue events) {
+        this.events = events;
+        this.server = new Server(port, events);
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public void send(Message message) {
+        this.clients.computeIfAbsent(message.getDestination(), dest -> {
+            Client client = new Client(this.remoteNodes.get(dest), events);
+            client.start();
+            return client;
+        }).send(message);
+    }
+
+    public int getConnectionCount() { return server.getConnectionCount(); }
+}
@@ -0,0 +1,51 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+//one-shot timers that post an event to a node's queue when they go off (election timeouts, heartbeats, the end of a
+//block period, replies that never came), so the node loop handles them like any other event
+//every node in the process shares one scheduler thread, which sleeps until the next timer is due, so waiting costs no CPU
+//and cancelled timers are taken out of its queue straight away (a follower cancels its election timeout on every heartbeat)
+//a timer cancelled just as it goes off can still post its event, so the event's payload is the Timer itself and the node
+//only acts on it if it's still the one it armed
+public class TimerService {
+    private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+    private final EventQueue events;
+
+    public static class Timer {
+        private final Object payload;
+        private ScheduledFuture<?> future;
+
+        private Timer(Object payload) {
+            this.payload = payload;
+        }
+
+        public Object getPayload() { return payload; }
+    }
+
+    public TimerService(EventQueue events) {
+        this.events = events;
+    }
+
+    //posts an event of the given type to the queue in delayMs, with the returned Timer as its payload
+    public Timer schedule(String type, Object payload, long delayMs) {
+        Timer timer = new Timer(payload);
+        timer.future = SCHEDULER.schedule(() -> events.post(type, timer), delayMs, TimeUnit.MILLISECONDS);
+        return timer;
+    }
+
+    //does nothing for null or a timer that already went off
+    public static void cancel(Timer timer) {
+        if (timer != null) timer.future.cancel(false);
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "timers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+}
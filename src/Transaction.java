@@ -1,13 +1,35 @@
 public class Transaction {
+    //keeps a full block's fees, and a sender's amount + fee, well inside an int
+    public static final int MAX_FEE = 100_000;
+    //longest id or account name, so a full block has a known largest size on the wire
+    public static final int MAX_TEXT_LENGTH = 64;
+    //characters Gson escapes (as \", \\ or \u003c and so on), which would make the text longer on the wire than it is
+    private static final String ESCAPED_CHARACTERS = "\"\\<>&='";
+    private String id;
     private String from, to;
     private int amount;
+    //paid by the sender on top of the amount and credited to whoever makes the block, higher fees get into blocks first
+    private int fee;
 
+    //transactions made before the mempool had no id or fee, they still hash exactly as they did then
     public Transaction(String from, String to, int amount) {
         this.from = from;
         this.to = to;
         this.amount = amount;
     }
 
+    public Transaction(String id, String from, String to, int amount, int fee) {
+        this.id = id;
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+        this.fee = fee;
+    }
+
+    public String getId() {
+        return id;
+    }
+
     public String getFrom() {
         return from;
     }
@@ -20,7 +42,39 @@ public class Transaction {
         return amount;
     }
 
+    public int getFee() {
+        return fee;
+    }
+
+    //what the sender pays, as a long so a huge amount or fee can't wrap around to a small or negative cost
+    public long getCost() {
+        return (long) amount + fee;
+    }
+
+    //false if the fee is negative or over MAX_FEE, or the sender would pay more than an int can hold
+    public boolean hasValidCost() {
+        return fee >= 0 && fee <= MAX_FEE && getCost() <= Integer.MAX_VALUE;
+    }
+
+    //false if the id or an account name is longer than MAX_TEXT_LENGTH or has anything but printable ASCII that JSON
+    //leaves alone, so each character is one byte on the wire however many times the text is escaped
+    public boolean hasValidText() {
+        return isPlainText(id) && isPlainText(from) && isPlainText(to);
+    }
+
+    private static boolean isPlainText(String text) {
+        if (text == null) return true;
+        if (text.length() > MAX_TEXT_LENGTH) return false;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 || c > 0x7e || ESCAPED_CHARACTERS.indexOf(c) >= 0) return false;
+        }
+        return true;
+    }
+
     public String toString() {
-        return this.from + "|" + this.to + "|" + this.amount;
+        if (this.id == null) return this.from + "|" + this.to + "|" + this.amount;
+        return this.id + "|" + this.from + "|" + this.to + "|" + this.amount + "|" + this.fee;
     }
 }
@@ -0,0 +1,105 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+//whether a block's transactions can go on top of some balances, with the same answer as applying them one by one in
+//block order: credits first, then each transaction takes amount + fee from the sender, who can't go below zero, and
+//gives amount to the receiver (so coins received earlier in the block can be spent later in it)
+//an account's balance at any point only depends on the transactions that touch it, so the transactions are grouped by
+//account, each group in block order (a transaction is a spend in its sender's group and a receipt in its receiver's),
+//and every group is checked on its own with a running total; big blocks check their groups in parallel on the common
+//ForkJoinPool, since no two groups share anything
+//accounts are numbered once per block so the running totals are plain ints instead of boxed map values
+public class TransactionValidator {
+    //below this many transactions splitting the work up costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 2048;
+
+    //the grouped check is only worth its extra pass when there are cores to spread the groups over
+    public static boolean canApply(Map<String, Integer> base, Map<String, Integer> credits, Transaction[] transactions) {
+        boolean parallel = transactions.length >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+        return canApply(base, credits, transactions, parallel);
+    }
+
+    static boolean canApply(Map<String, Integer> base, Map<String, Integer> credits, Transaction[] transactions, boolean parallel) {
+        HashMap<String, Integer> accountIds = new HashMap<>();
+        int[] from = new int[transactions.length], to = new int[transactions.length];
+        int[] amount = new int[transactions.length], cost = new int[transactions.length];
+
+        for (int i = 0; i < transactions.length; i++) {
+            Transaction curTxn = transactions[i];
+            if (curTxn == null) {
+                from[i] = -1;
+                continue;
+            }
+            if (curTxn.getAmount() < 0 || !curTxn.hasValidCost() || !curTxn.hasValidText()) return false;
+
+            from[i] = accountId(accountIds, curTxn.getFrom());
+            to[i] = accountId(accountIds, curTxn.getTo());
+            amount[i] = curTxn.getAmount();
+            cost[i] = (int) curTxn.getCost();
+        }
+
+        int[] balances = new int[accountIds.size()];
+        for (Map.Entry<String, Integer> curAccount : accountIds.entrySet()) {
+            balances[curAccount.getValue()] = base.getOrDefault(curAccount.getKey(), 0) + credits.getOrDefault(curAccount.getKey(), 0);
+        }
+
+        if (!parallel) return applyInOrder(balances, from, to, amount, cost);
+        return checkGroups(balances, from, to, amount, cost);
+    }
+
+    private static int accountId(HashMap<String, Integer> accountIds, String account) {
+        Integer id = accountIds.get(account);
+        if (id == null) {
+            id = accountIds.size();
+            accountIds.put(account, id);
+        }
+        return id;
+    }
+
+    //one pass in block order over all accounts at once, for small blocks
+    private static boolean applyInOrder(int[] balances, int[] from, int[] to, int[] amount, int[] cost) {
+        for (int i = 0; i < from.length; i++) {
+            if (from[i] < 0) continue;
+
+            balances[from[i]] -= cost[i];
+            //This means that someone was "DOUBLE SPENDING" and ran out of money, so it's not a valid block
+            if (balances[from[i]] < 0) return false;
+            balances[to[i]] += amount[i];
+        }
+        return true;
+    }
+
+    private static boolean checkGroups(int[] balances, int[] from, int[] to, int[] amount, int[] cost) {
+        //counting sort of the spends and receipts by account, which keeps each account's in block order
+        int[] groupStart = new int[balances.length + 1];
+        for (int i = 0; i < from.length; i++) {
+            if (from[i] < 0) continue;
+            groupStart[from[i] + 1]++;
+            groupStart[to[i] + 1]++;
+        }
+        for (int i = 0; i < balances.length; i++) groupStart[i + 1] += groupStart[i];
+
+        //the balance only has to be checked after spends
+        int[] changes = new int[groupStart[balances.length]];
+        boolean[] isSpend = new boolean[changes.length];
+        int[] next = groupStart.clone();
+        for (int i = 0; i < from.length; i++) {
+            if (from[i] < 0) continue;
+            //sending to yourself spends first, then receives, same as applying it
+            isSpend[next[from[i]]] = true;
+            changes[next[from[i]]++] = -cost[i];
+            changes[next[to[i]]++] = amount[i];
+        }
+
+        return IntStream.range(0, balances.length).parallel().allMatch(account -> {
+            int balance = balances[account];
+            for (int i = groupStart[account]; i < groupStart[account + 1]; i++) {
+                balance += changes[i];
+                if (isSpend[i] && balance < 0) return false;
+            }
+            return true;
+        });
+    }
+}
@@ -0,0 +1,9 @@
+//how a node exchanges messages with the others: TcpTransport between processes, LoopbackTransport for many nodes in one JVM
+public interface Transport {
+    //called once by the node before start(); incoming messages and failed sends are posted to events
+    public void attach(String name, EventQueue events);
+    public void start();
+    //sends to message.getDestination(), if it can't be delivered it comes back as a SEND_FAILED event
+    public void send(Message message);
+    public int getConnectionCount();
+}
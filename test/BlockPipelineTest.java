@@ -0,0 +1,62 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//a leader proposes at most termLimit blocks a term, however fast its proposals make it into the chain
+public class BlockPipelineTest {
+    private static final int DEPTH = 4, TERM_LIMIT = 6;
+
+    //what StakeNode.run does while leading: fill the pipeline, then let every proposal go into the chain, over and over
+    private static int blocksInTerm(BlockPipeline pipeline) {
+        int proposed = 0;
+        for (int round = 0; round < 100; round++) {
+            while (pipeline.canPropose()) {
+                pipeline.add(new StakeBlock(proposed + 1, "leader", 0, Block.FIRST_HASH), new BlockMeta(1, "leader"), new HashMap<>(), new ArrayList<>(), null);
+                proposed++;
+            }
+            while (!pipeline.isEmpty()) pipeline.removeFirst();
+        }
+        return proposed;
+    }
+
+    @Test
+    public void termProposesAtMostTermLimitBlocks() {
+        BlockPipeline pipeline = new BlockPipeline(DEPTH, TERM_LIMIT);
+        pipeline.startTerm();
+        assertEquals(TERM_LIMIT, blocksInTerm(pipeline));
+        assertFalse(pipeline.canPropose());
+    }
+
+    @Test
+    public void newTermStartsOver() {
+        BlockPipeline pipeline = new BlockPipeline(DEPTH, TERM_LIMIT);
+        pipeline.startTerm();
+        blocksInTerm(pipeline);
+        pipeline.startTerm();
+        assertEquals(TERM_LIMIT, blocksInTerm(pipeline));
+    }
+
+    @Test
+    public void pipelineNeverHoldsMoreThanDepth() {
+        BlockPipeline pipeline = new BlockPipeline(DEPTH, TERM_LIMIT);
+        pipeline.startTerm();
+        for (int i = 0; i < DEPTH; i++) {
+            assertTrue(pipeline.canPropose());
+            pipeline.add(new StakeBlock(i + 1, "leader", 0, Block.FIRST_HASH), new BlockMeta(1, "leader"), new HashMap<>(), new ArrayList<>(), null);
+        }
+        assertFalse(pipeline.canPropose());
+        assertEquals(DEPTH, pipeline.size());
+    }
+
+    @Test
+    public void defaultTermMakesPipelineDepthBlocks() {
+        BlockPipeline pipeline = new BlockPipeline(NodeRunner.STAKE_PIPELINE, NodeRunner.STAKE_TERM_BLOCKS);
+        pipeline.startTerm();
+        assertEquals(NodeRunner.STAKE_PIPELINE, blocksInTerm(pipeline));
+    }
+}